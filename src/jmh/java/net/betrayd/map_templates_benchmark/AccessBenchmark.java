@@ -0,0 +1,118 @@
+package net.betrayd.map_templates_benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.betrayd.map_templates.BlockBounds;
+import net.betrayd.map_templates.MapTemplate;
+import net.betrayd.map_templates_benchmark.SyntheticTemplates.Palette;
+import net.minecraft.world.Heightmap;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccessBenchmark {
+    private static final int RANDOM_LOOKUPS = 4096;
+
+    @Param({ "64", "256" })
+    public int size;
+
+    @Param({ "SIMPLE", "COMPLEX" })
+    public Palette palette;
+
+    private MapTemplate template;
+    private BlockBounds bounds;
+    private int[] randomPositions;
+
+    /**
+     * A copy with no cached heights, made again before every call. Kept apart
+     * from the benchmark state so only {@link #getTopYCold} pays for the copy.
+     */
+    @State(Scope.Thread)
+    public static class ColdTemplate {
+        private MapTemplate template;
+
+        @Setup(Level.Invocation)
+        public void copy(AccessBenchmark benchmark) {
+            this.template = benchmark.template.copy();
+            // Setting the bounds drops the cached heights.
+            this.template.setBounds(benchmark.bounds);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        this.template = SyntheticTemplates.create(this.size, this.palette, 1);
+        this.bounds = this.template.getBounds();
+        this.template.computeHeightmaps(Heightmap.Type.WORLD_SURFACE);
+
+        var random = new Random(3);
+        this.randomPositions = new int[RANDOM_LOOKUPS * 3];
+        for (int i = 0; i < RANDOM_LOOKUPS; i++) {
+            this.randomPositions[i * 3] = random.nextInt(this.size);
+            this.randomPositions[i * 3 + 1] = random.nextInt(SyntheticTemplates.HEIGHT);
+            this.randomPositions[i * 3 + 2] = random.nextInt(this.size);
+        }
+    }
+
+    @Benchmark
+    public void getBlockStateSequential(Blackhole blackhole) {
+        var min = this.bounds.min();
+        var max = this.bounds.max();
+        for (int y = min.getY(); y <= max.getY(); y++) {
+            for (int z = min.getZ(); z <= max.getZ(); z++) {
+                for (int x = min.getX(); x <= max.getX(); x++) {
+                    blackhole.consume(this.template.getBlockState(x, y, z));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void getBlockStateRandom(Blackhole blackhole) {
+        int[] positions = this.randomPositions;
+        for (int i = 0; i < positions.length; i += 3) {
+            blackhole.consume(this.template.getBlockState(positions[i], positions[i + 1], positions[i + 2]));
+        }
+    }
+
+    @Benchmark
+    public void getTopYCached(Blackhole blackhole) {
+        for (int z = 0; z < this.size; z++) {
+            for (int x = 0; x < this.size; x++) {
+                blackhole.consume(this.template.getTopY(x, z, Heightmap.Type.WORLD_SURFACE));
+            }
+        }
+    }
+
+    @Benchmark
+    public void getTopYCold(ColdTemplate cold, Blackhole blackhole) {
+        for (int z = 0; z < this.size; z++) {
+            for (int x = 0; x < this.size; x++) {
+                blackhole.consume(cold.template.getTopY(x, z, Heightmap.Type.WORLD_SURFACE));
+            }
+        }
+    }
+
+    @Benchmark
+    public void streamBlockEntities(Blackhole blackhole) {
+        this.template.streamBlockEntities().forEach(blackhole::consume);
+    }
+}
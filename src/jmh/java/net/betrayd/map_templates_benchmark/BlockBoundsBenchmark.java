@@ -0,0 +1,45 @@
+package net.betrayd.map_templates_benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import net.betrayd.map_templates.BlockBounds;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockBoundsBenchmark {
+    /**
+     * Width and length of the bounds, which span the full height of an overworld.
+     */
+    @Param({ "64", "256", "1024" })
+    public int size;
+
+    private BlockBounds bounds;
+
+    @Setup
+    public void setup() {
+        int half = this.size / 2;
+        this.bounds = BlockBounds.of(-half, -64, -half, half - 1, 319, half - 1);
+    }
+
+    @Benchmark
+    public LongSet asChunkSections() {
+        return this.bounds.asChunkSections();
+    }
+}
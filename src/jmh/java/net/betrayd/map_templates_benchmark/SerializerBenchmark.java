@@ -0,0 +1,81 @@
+package net.betrayd.map_templates_benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.betrayd.map_templates.MapTemplate;
+import net.betrayd.map_templates.MapTemplateSerializer;
+import net.betrayd.map_templates.TemplateCompression;
+import net.betrayd.map_templates_benchmark.SyntheticTemplates.Palette;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializerBenchmark {
+    @Param({ "64", "256" })
+    public int size;
+
+    @Param({ "SIMPLE", "COMPLEX" })
+    public Palette palette;
+
+    @Param({ "GZIP", "FAST" })
+    public String compression;
+
+    /**
+     * A template file to benchmark instead of a synthetic one, such as a real
+     * map. When set, <code>size</code> and <code>palette</code> are ignored.
+     */
+    @Param({ "" })
+    public String file;
+
+    private MapTemplate template;
+    private TemplateCompression templateCompression;
+    private byte[] saved;
+
+    @Setup
+    public void setup() throws IOException {
+        if (this.file.isEmpty()) {
+            this.template = SyntheticTemplates.create(this.size, this.palette, 1);
+        } else {
+            try (var input = Files.newInputStream(Path.of(this.file))) {
+                this.template = MapTemplateSerializer.loadFrom(input);
+            }
+        }
+        this.templateCompression = switch (this.compression) {
+            case "FAST" -> TemplateCompression.FAST;
+            default -> TemplateCompression.GZIP;
+        };
+        this.saved = this.save().toByteArray();
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream save() throws IOException {
+        var output = new ByteArrayOutputStream();
+        MapTemplateSerializer.saveTo(this.template, output, this.templateCompression);
+        return output;
+    }
+
+    @Benchmark
+    public MapTemplate load() throws IOException {
+        return MapTemplateSerializer.loadFrom(new ByteArrayInputStream(this.saved));
+    }
+}
@@ -0,0 +1,143 @@
+package net.betrayd.map_templates_benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.betrayd.map_templates.MapEntity;
+import net.betrayd.map_templates.MapTemplate;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtDouble;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.util.math.Vec3d;
+
+/**
+ * Builds deterministic templates for benchmarks, so results are comparable
+ * between runs and releases.
+ * <p>
+ * Templates are a rolling terrain, 64 blocks tall, with chests scattered over
+ * the surface and a few entities above it. The palette decides what the
+ * terrain is made of.
+ */
+public final class SyntheticTemplates {
+    public static final int HEIGHT = 64;
+
+    static {
+        // Blocks and registries have to exist, but nothing else of the game does.
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    public enum Palette {
+        /**
+         * Layers of stone, dirt and grass. Most sections hold a handful of states.
+         */
+        SIMPLE,
+        /**
+         * Every block is picked from a few hundred random states, so sections
+         * need large palettes.
+         */
+        COMPLEX
+    }
+
+    private SyntheticTemplates() {
+    }
+
+    /**
+     * Build a template.
+     *
+     * @param size    Width and length of the template, in blocks.
+     * @param palette What to build the terrain out of.
+     * @param seed    Seed for everything random about the template.
+     * @return The new template.
+     */
+    public static MapTemplate create(int size, Palette palette, long seed) {
+        var random = new Random(seed);
+        var template = MapTemplate.createEmpty();
+        List<BlockState> states = palette == Palette.COMPLEX ? pickStates(random, 256) : List.of();
+
+        for (int z = 0; z < size; z++) {
+            for (int x = 0; x < size; x++) {
+                int surface = surfaceY(x, z);
+
+                for (int y = 0; y <= surface; y++) {
+                    BlockState state;
+                    if (palette == Palette.COMPLEX) {
+                        state = states.get(random.nextInt(states.size()));
+                    } else if (y == surface) {
+                        state = Blocks.GRASS_BLOCK.getDefaultState();
+                    } else if (y > surface - 4) {
+                        state = Blocks.DIRT.getDefaultState();
+                    } else {
+                        state = Blocks.STONE.getDefaultState();
+                    }
+                    template.setBlockState(x, y, z, state);
+                }
+
+                if (random.nextInt(200) == 0) {
+                    template.setBlockState(x, surface + 1, z, Blocks.CHEST.getDefaultState());
+                    template.setBlockEntityNbt(x, surface + 1, z, createChestNbt(random));
+                }
+
+                if (random.nextInt(500) == 0) {
+                    template.addEntity(createEntity(new Vec3d(x + 0.5, surface + 1, z + 0.5)));
+                }
+            }
+        }
+
+        return template;
+    }
+
+    private static int surfaceY(int x, int z) {
+        double height = 24 + 8 * Math.sin(x * 0.05) + 6 * Math.cos(z * 0.07) + 4 * Math.sin((x + z) * 0.13);
+        return Math.min(HEIGHT - 2, Math.max(1, (int) height));
+    }
+
+    private static List<BlockState> pickStates(Random random, int count) {
+        List<BlockState> all = new ArrayList<>();
+        for (BlockState state : Block.STATE_IDS) {
+            if (!state.isAir() && !state.hasBlockEntity()) {
+                all.add(state);
+            }
+        }
+
+        List<BlockState> states = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            states.add(all.get(random.nextInt(all.size())));
+        }
+        return states;
+    }
+
+    private static NbtCompound createChestNbt(Random random) {
+        var items = new NbtList();
+        for (int slot = 0; slot < 27; slot += 1 + random.nextInt(4)) {
+            var item = new NbtCompound();
+            item.putByte("Slot", (byte) slot);
+            item.putString("id", "minecraft:diamond");
+            item.putByte("Count", (byte) (1 + random.nextInt(64)));
+            items.add(item);
+        }
+
+        var nbt = new NbtCompound();
+        nbt.putString("id", "minecraft:chest");
+        nbt.put("Items", items);
+        return nbt;
+    }
+
+    private static MapEntity createEntity(Vec3d pos) {
+        var position = new NbtList();
+        position.add(NbtDouble.of(pos.x));
+        position.add(NbtDouble.of(pos.y));
+        position.add(NbtDouble.of(pos.z));
+
+        var nbt = new NbtCompound();
+        nbt.putString("id", "minecraft:armor_stand");
+        nbt.put("Pos", position);
+        return new MapEntity(pos, nbt);
+    }
+}
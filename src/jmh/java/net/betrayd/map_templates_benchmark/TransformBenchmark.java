@@ -0,0 +1,84 @@
+package net.betrayd.map_templates_benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.betrayd.map_templates.MapTemplate;
+import net.betrayd.map_templates.MapTransform;
+import net.betrayd.map_templates_benchmark.SyntheticTemplates.Palette;
+import net.minecraft.util.BlockMirror;
+import net.minecraft.util.BlockRotation;
+import net.minecraft.util.math.BlockPos;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+    @Param({ "64", "256" })
+    public int size;
+
+    @Param({ "SIMPLE", "COMPLEX" })
+    public Palette palette;
+
+    private MapTemplate template;
+    private MapTransform rotation;
+    private MapTemplate mergeSource;
+
+    /**
+     * An overlapping template to merge into. Merging modifies it, so it's copied
+     * again before every call. Kept apart from the benchmark state so only
+     * {@link #mergeInto} pays for the copy.
+     */
+    @State(Scope.Thread)
+    public static class MergeTarget {
+        private MapTemplate template;
+
+        @Setup(Level.Invocation)
+        public void copy(TransformBenchmark benchmark) {
+            this.template = benchmark.mergeSource.copy();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        this.template = SyntheticTemplates.create(this.size, this.palette, 1);
+        this.rotation = MapTransform.rotationAround(new BlockPos(5, 0, 9), BlockRotation.CLOCKWISE_90, BlockMirror.NONE);
+        this.mergeSource = SyntheticTemplates.create(this.size, this.palette, 2).translated(8, 4, 8);
+    }
+
+    @Benchmark
+    public MapTemplate transformed() {
+        return this.template.transformed(this.rotation);
+    }
+
+    @Benchmark
+    public MapTemplate rotate() {
+        return this.template.rotate(BlockRotation.CLOCKWISE_90);
+    }
+
+    @Benchmark
+    public MapTemplate translated() {
+        return this.template.translated(5, 3, 7);
+    }
+
+    @Benchmark
+    public MapTemplate mergeInto(MergeTarget target) {
+        this.template.mergeInto(target.template);
+        return target.template;
+    }
+}
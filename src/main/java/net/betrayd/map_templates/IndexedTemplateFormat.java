@@ -0,0 +1,667 @@
+package net.betrayd.map_templates;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Function;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterable;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtSizeValidationException;
+import net.minecraft.nbt.NbtTagSizeTracker;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.PalettedContainer;
+
+/**
+ * A template file format where every chunk is compressed on its own and can be
+ * found through an index, so a template can be opened without reading all of
+ * it.
+ * <p>
+ * All values are big-endian. The file starts with a fixed header, followed by
+ * the index and the compressed chunk and root compounds:
+ * <pre>
+ * int  magic ("MTPI")
+ * int  format version
+ * long root offset
+ * int  root length
+ * int  chunk count
+ * long index offset
+ * ...
+ * index: chunk count * { long section pos, long offset, int length }
+ * </pre>
+ * Index entries are sorted by section position, so the index can be searched
+ * in place. The root compound holds everything except the chunks, in the same
+ * layout as the regular format.
+ * <p>
+ * Since version 3, chunk compounds leave out their position, which is taken
+ * from the index instead. Identical chunks are stored once, and every index
+ * entry for them points at the same data.
+ * <p>
+ * Before version 4, the header has no index offset and the index always
+ * follows it directly. Since version 4, changes can be appended to a file: the
+ * changed chunks, the root and a new index are written after the existing data,
+ * and the header is pointed at them last. Data that is no longer referenced
+ * stays in the file until it is compacted.
+ */
+final class IndexedTemplateFormat {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IndexedTemplateFormat.class);
+
+    static final int MAGIC = 0x4D545049;
+    static final int VERSION = 4;
+
+    /**
+     * The first version with a sorted index.
+     */
+    private static final int SORTED_VERSION = 2;
+    /**
+     * The first version whose index can be moved, so changes can be appended.
+     */
+    private static final int APPENDABLE_VERSION = 4;
+
+    private static final int LEGACY_HEADER_SIZE = 4 + 4 + 8 + 4 + 4;
+    static final int HEADER_SIZE = LEGACY_HEADER_SIZE + 8;
+    static final int INDEX_ENTRY_SIZE = 8 + 8 + 4;
+
+    /**
+     * What an indexed file held when a template was last saved to or opened from
+     * it, so later saves to the same file only need to append what changed.
+     *
+     * @param path       Absolute path of the file.
+     * @param header     Header of the file.
+     * @param fileLength Length of the file.
+     * @param root       Root compound in the file, without its data version.
+     */
+    record SaveState(Path path, Header header, long fileLength, NbtCompound root) {
+    }
+
+    private IndexedTemplateFormat() {
+    }
+
+    /**
+     * Write a template in full. The file is written next to the target and moved
+     * over it once complete, so a failed save leaves the old file intact, and
+     * templates still reading it lazily keep reading the old data.
+     */
+    static void write(MapTemplate template, Path path) throws IOException {
+        template.loadFully();
+
+        Header header;
+        NbtCompound root;
+        long fileLength;
+        Path parent = path.toAbsolutePath().getParent();
+        Path tempPath = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            try (var channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                // Empty chunks read back the same as missing ones, so they aren't written.
+                long[] positions = template.chunks.long2ObjectEntrySet().stream()
+                        .filter(entry -> entry.getValue().hasContent())
+                        .mapToLong(Long2ObjectMap.Entry::getLongKey)
+                        .sorted()
+                        .toArray();
+                int chunkCount = positions.length;
+                var index = ByteBuffer.allocate(chunkCount * INDEX_ENTRY_SIZE);
+
+                // Leave room for the header and index, which are written once the offsets are known.
+                long position = HEADER_SIZE + (long) chunkCount * INDEX_ENTRY_SIZE;
+                channel.position(position);
+
+                // Chunks with the same blocks share a pooled container, so duplicates are found before compressing.
+                var pool = new SectionPool();
+                var written = new HashMap<ChunkKey, WrittenChunk>();
+
+                for (long pos : positions) {
+                    var key = ChunkKey.of(template.chunks.get(pos), pool);
+                    var entry = written.get(key);
+                    if (entry == null) {
+                        byte[] data = encodeChunk(key);
+                        entry = new WrittenChunk(position, data.length);
+                        written.put(key, entry);
+
+                        writeFully(channel, ByteBuffer.wrap(data));
+                        position += data.length;
+                    }
+
+                    index.putLong(pos).putLong(entry.offset()).putInt(entry.length());
+                }
+
+                root = MapTemplateSerializer.saveRoot(template);
+                byte[] rootData = compressRoot(root);
+                writeFully(channel, ByteBuffer.wrap(rootData));
+                fileLength = position + rootData.length;
+
+                header = new Header(VERSION, position, rootData.length, chunkCount, HEADER_SIZE);
+                channel.position(0);
+                writeFully(channel, header.encode());
+                writeFully(channel, index.flip());
+
+                // The new file must be complete on disk before it replaces the old one.
+                channel.force(true);
+            }
+
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+
+        for (MapChunk chunk : template.chunks.values()) {
+            chunk.markClean();
+        }
+        template.savedState = new SaveState(path.toAbsolutePath().normalize(), header, fileLength, root.copy());
+    }
+
+    /**
+     * Save a template to a file it was last saved to or opened from, appending
+     * only the chunks that changed since then. The root is re-encoded, but only
+     * written if it differs from the one in the file. Once more than half of the
+     * file is unreferenced, it is compacted.
+     * <p>
+     * If the template doesn't come from this file, or the file has changed since,
+     * the template is written in full instead.
+     */
+    static void writeDelta(MapTemplate template, Path path) throws IOException {
+        var state = template.savedState;
+        if (state == null || !state.path().equals(path.toAbsolutePath().normalize())
+                || !appendDelta(template, path, state)) {
+            write(template, path);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the file doesn't match the save state, and
+     *         has to be written in full.
+     */
+    private static boolean appendDelta(MapTemplate template, Path path, SaveState state) throws IOException {
+        long liveBytes;
+        long fileLength;
+        Header header;
+        NbtCompound root;
+        List<MapChunk> saved = new ArrayList<>();
+
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != state.fileLength() || !state.header().equals(tryReadHeader(channel, path))) {
+                return false;
+            }
+
+            var oldHeader = state.header();
+            int oldCount = oldHeader.chunkCount();
+            var oldIndex = readFully(channel, oldHeader.indexOffset(), oldCount * INDEX_ENTRY_SIZE);
+            long[] oldPositions = new long[oldCount];
+            long[] oldOffsets = new long[oldCount];
+            int[] oldLengths = new int[oldCount];
+            for (int i = 0; i < oldCount; i++) {
+                oldPositions[i] = oldIndex.getLong();
+                oldOffsets[i] = oldIndex.getLong();
+                oldLengths[i] = oldIndex.getInt();
+            }
+
+            // Chunks that were never loaded are unchanged, so they're still in the file.
+            var positionSet = new LongOpenHashSet(template.chunks.keySet());
+            var source = template.chunkSource;
+            if (source != null) {
+                var sourceIterator = source.getPositions().iterator();
+                while (sourceIterator.hasNext()) {
+                    positionSet.add(sourceIterator.nextLong());
+                }
+            }
+            long[] positions = positionSet.toLongArray();
+            Arrays.sort(positions);
+
+            var index = ByteBuffer.allocate(positions.length * INDEX_ENTRY_SIZE);
+            int chunkCount = 0;
+
+            long position = state.fileLength();
+            channel.position(position);
+
+            var pool = new SectionPool();
+            var written = new HashMap<ChunkKey, WrittenChunk>();
+            var liveOffsets = new LongOpenHashSet();
+            liveBytes = 0;
+
+            for (long pos : positions) {
+                MapChunk chunk = template.chunks.get(pos);
+                int old = Arrays.binarySearch(oldPositions, pos);
+
+                if (chunk == null && old < 0 && source != null) {
+                    chunk = source.get(pos);
+                }
+
+                long offset;
+                int length;
+                if (chunk == null || !chunk.isDirty() && old >= 0) {
+                    if (old < 0) continue;
+                    offset = oldOffsets[old];
+                    length = oldLengths[old];
+                } else {
+                    saved.add(chunk);
+                    // Empty chunks read back the same as missing ones, so they're dropped from the index.
+                    if (!chunk.hasContent()) continue;
+
+                    var key = ChunkKey.of(chunk, pool);
+                    var entry = written.get(key);
+                    if (entry == null) {
+                        byte[] data = encodeChunk(key);
+                        entry = new WrittenChunk(position, data.length);
+                        written.put(key, entry);
+
+                        writeFully(channel, ByteBuffer.wrap(data));
+                        position += data.length;
+                    }
+                    offset = entry.offset();
+                    length = entry.length();
+                }
+
+                index.putLong(pos).putLong(offset).putInt(length);
+                chunkCount++;
+                if (liveOffsets.add(offset)) liveBytes += length;
+            }
+
+            root = MapTemplateSerializer.saveRoot(template);
+            boolean rootChanged = !root.equals(state.root());
+            if (saved.isEmpty() && chunkCount == oldCount && !rootChanged) {
+                // Nothing changed, so the file is already up to date.
+                return true;
+            }
+
+            long rootOffset;
+            int rootLength;
+            if (!rootChanged) {
+                rootOffset = oldHeader.rootOffset();
+                rootLength = oldHeader.rootLength();
+            } else {
+                byte[] rootData = compressRoot(root);
+                writeFully(channel, ByteBuffer.wrap(rootData));
+
+                rootOffset = position;
+                rootLength = rootData.length;
+                position += rootLength;
+            }
+
+            long indexOffset = position;
+            writeFully(channel, index.flip());
+            fileLength = position + index.limit();
+
+            // The header goes last; until it's written, the file still reads as it was. Everything it points at
+            // has to reach the disk first, or a crash could leave it pointing at data that was never written.
+            channel.force(true);
+
+            header = new Header(VERSION, rootOffset, rootLength, chunkCount, indexOffset);
+            channel.position(0);
+            writeFully(channel, header.encode());
+            channel.force(true);
+
+            liveBytes += HEADER_SIZE + index.limit() + rootLength;
+        }
+
+        for (MapChunk chunk : saved) {
+            chunk.markClean();
+        }
+        var newState = new SaveState(state.path(), header, fileLength, root.copy());
+        template.savedState = newState;
+
+        if (fileLength - liveBytes > liveBytes) {
+            try {
+                template.savedState = compact(path, newState);
+            } catch (IOException e) {
+                // The delta itself was saved, so the file is only larger than it needs to be.
+                LOGGER.warn("Unable to compact indexed map template {}", path, e);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Rewrite a file without the data its index no longer refers to. Chunks are
+     * copied as they are, without decoding them.
+     *
+     * @return The save state of the compacted file.
+     */
+    private static SaveState compact(Path path, SaveState state) throws IOException {
+        var header = state.header();
+        int chunkCount = header.chunkCount();
+
+        Path parent = path.toAbsolutePath().getParent();
+        Path tempPath = Files.createTempFile(parent, path.getFileName().toString(), ".tmp");
+        try {
+            Header newHeader;
+            long fileLength;
+            try (var input = FileChannel.open(path, StandardOpenOption.READ);
+                    var output = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+                var index = readFully(input, header.indexOffset(), chunkCount * INDEX_ENTRY_SIZE);
+                var newIndex = ByteBuffer.allocate(chunkCount * INDEX_ENTRY_SIZE);
+
+                long position = HEADER_SIZE + (long) chunkCount * INDEX_ENTRY_SIZE;
+                output.position(position);
+
+                var moved = new Long2LongOpenHashMap();
+                moved.defaultReturnValue(-1);
+
+                for (int i = 0; i < chunkCount; i++) {
+                    long pos = index.getLong();
+                    long offset = index.getLong();
+                    int length = index.getInt();
+
+                    long newOffset = moved.get(offset);
+                    if (newOffset < 0) {
+                        newOffset = position;
+                        moved.put(offset, newOffset);
+
+                        transferFully(input, offset, length, output);
+                        position += length;
+                    }
+                    newIndex.putLong(pos).putLong(newOffset).putInt(length);
+                }
+
+                long rootOffset = position;
+                transferFully(input, header.rootOffset(), header.rootLength(), output);
+                fileLength = position + header.rootLength();
+
+                newHeader = new Header(VERSION, rootOffset, header.rootLength(), chunkCount, HEADER_SIZE);
+                output.position(0);
+                writeFully(output, newHeader.encode());
+                writeFully(output, newIndex.flip());
+
+                // The compacted file must be complete on disk before it replaces the original.
+                output.force(true);
+            }
+
+            // Readers that still have the old file open keep reading from it.
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new SaveState(state.path(), newHeader, fileLength, state.root());
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
+    }
+
+    record Header(int version, long rootOffset, int rootLength, int chunkCount, long indexOffset) {
+        ByteBuffer encode() {
+            return ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putInt(this.version)
+                    .putLong(this.rootOffset)
+                    .putInt(this.rootLength)
+                    .putInt(this.chunkCount)
+                    .putLong(this.indexOffset)
+                    .flip();
+        }
+    }
+
+    private static Header readHeader(FileChannel channel, Path path) throws IOException {
+        var header = readFully(channel, 0, LEGACY_HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not an indexed map template: " + path);
+        }
+
+        int version = header.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported indexed map template version " + version + ": " + path);
+        }
+
+        long rootOffset = header.getLong();
+        int rootLength = header.getInt();
+        int chunkCount = header.getInt();
+        long indexOffset = version >= APPENDABLE_VERSION
+                ? readFully(channel, LEGACY_HEADER_SIZE, Long.BYTES).getLong()
+                : LEGACY_HEADER_SIZE;
+
+        // Everything the header points at must lie within the file.
+        long size = channel.size();
+        if (rootOffset < 0 || rootLength < 0 || rootOffset > size - rootLength) {
+            throw new IOException("Indexed map template root is out of bounds: " + path);
+        }
+        if (chunkCount < 0 || indexOffset < 0 || indexOffset > size - (long) chunkCount * INDEX_ENTRY_SIZE) {
+            throw new IOException("Indexed map template index is out of bounds: " + path);
+        }
+
+        return new Header(version, rootOffset, rootLength, chunkCount, indexOffset);
+    }
+
+    @Nullable
+    private static Header tryReadHeader(FileChannel channel, Path path) {
+        try {
+            return readHeader(channel, path);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remember which file a template was opened from, so it can be saved back
+     * to it with {@link #writeDelta}. Files that would need to be upgraded are
+     * always written in full.
+     */
+    private static void trackSaveState(MapTemplate template, Path path, Header header, FileChannel channel,
+            NbtCompound root) throws IOException {
+        if (header.version() < APPENDABLE_VERSION
+                || MapTemplateSerializer.getDataVersion(root) != MapTemplateSerializer.getSaveVersion()) {
+            return;
+        }
+
+        var savedRoot = root.copy();
+        savedRoot.remove("data_version");
+        template.savedState = new SaveState(path.toAbsolutePath().normalize(), header, channel.size(), savedRoot);
+    }
+
+    private static NbtCompound readRoot(FileChannel channel, Header header, long maxBytes) throws IOException {
+        return decompress(readFully(channel, header.rootOffset(), header.rootLength()), maxBytes);
+    }
+
+    static MapTemplate open(Path path) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            var header = readHeader(channel, path);
+            int chunkCount = header.chunkCount();
+            long maxBytes = MapTemplateSerializer.getMaxLoadBytes();
+
+            var index = readFully(channel, header.indexOffset(), chunkCount * INDEX_ENTRY_SIZE);
+            var entries = new Long2IntOpenHashMap(chunkCount);
+            long[] offsets = new long[chunkCount];
+            int[] lengths = new int[chunkCount];
+
+            for (int i = 0; i < chunkCount; i++) {
+                entries.put(index.getLong(), i);
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+
+            var root = readRoot(channel, header, maxBytes);
+
+            var template = MapTemplate.createEmpty();
+            trackSaveState(template, path, header, channel, root);
+            MapTemplateSerializer.loadRoot(template, root);
+            template.chunkSource = new IndexedChunkSource(channel, entries, offsets, lengths, maxBytes,
+                    MapTemplateSerializer.createChunkDecoder(MapTemplateSerializer.getDataVersion(root)));
+
+            return template;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static MapTemplate openMapped(Path path, long maxHeapBytes) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = readHeader(channel, path);
+            if (header.version() < SORTED_VERSION) {
+                throw new IOException("Indexed map template is too old to be memory-mapped, save it again: " + path);
+            }
+
+            long maxBytes = MapTemplateSerializer.getMaxLoadBytes();
+            var root = readRoot(channel, header, maxBytes);
+
+            var template = MapTemplate.createEmpty();
+            trackSaveState(template, path, header, channel, root);
+            MapTemplateSerializer.loadRoot(template, root);
+            // Mappings stay valid once the channel is closed.
+            template.chunkSource = new MappedChunkSource(MappedChunkSource.map(channel), header.indexOffset(),
+                    header.chunkCount(), maxHeapBytes, maxBytes, MapTemplateSerializer.createChunkDecoder(MapTemplateSerializer.getDataVersion(root)));
+
+            return template;
+        }
+    }
+
+    private static final class IndexedChunkSource implements MapChunkSource {
+        private final FileChannel channel;
+        private final Long2IntMap entries;
+        private final long[] offsets;
+        private final int[] lengths;
+        private final long maxBytes;
+        private final Function<NbtCompound, MapChunk> decoder;
+
+        private final Long2ObjectMap<MapChunk> loaded = Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<>());
+
+        IndexedChunkSource(FileChannel channel, Long2IntMap entries, long[] offsets, int[] lengths, long maxBytes,
+                Function<NbtCompound, MapChunk> decoder) {
+            this.channel = channel;
+            this.entries = entries;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.maxBytes = maxBytes;
+            this.decoder = decoder;
+            this.entries.defaultReturnValue(-1);
+        }
+
+        @Override
+        public LongIterable getPositions() {
+            return LongSets.unmodifiable(this.entries.keySet());
+        }
+
+        @Override
+        @Nullable
+        public MapChunk get(long pos) {
+            var chunk = this.loaded.get(pos);
+            if (chunk != null) return chunk;
+
+            int i = this.entries.get(pos);
+            if (i < 0) return null;
+
+            // Read outside the lock so chunks can be loaded in parallel.
+            try {
+                chunk = this.decoder.apply(readChunk(readFully(this.channel, this.offsets[i], this.lengths[i]), pos,
+                        this.maxBytes));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to read chunk " + pos, e);
+            }
+            if (chunk == null) return null;
+            chunk.markClean();
+
+            var existing = this.loaded.putIfAbsent(pos, chunk);
+            return existing != null ? existing : chunk;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Identifies a chunk's contents without encoding them. Pooled containers are
+     * compared by identity, so chunks match when they have the same blocks and
+     * block entities.
+     */
+    private record ChunkKey(PalettedContainer<BlockState> container, NbtCompound blockEntities) {
+        static ChunkKey of(MapChunk chunk, SectionPool pool) {
+            var blockEntities = new NbtCompound();
+            chunk.serializeBlockEntities(blockEntities);
+            return new ChunkKey(pool.intern(chunk.getContainer()), blockEntities);
+        }
+    }
+
+    private record WrittenChunk(long offset, int length) {
+    }
+
+    private static byte[] encodeChunk(ChunkKey key) throws IOException {
+        var chunkRoot = key.blockEntities().copy();
+        chunkRoot.put("block_states", MapChunk.encodeBlocks(key.container()));
+        return compress(chunkRoot);
+    }
+
+    private static byte[] compressRoot(NbtCompound root) throws IOException {
+        var copy = root.copy();
+        copy.putInt("data_version", MapTemplateSerializer.getSaveVersion());
+        return compress(copy);
+    }
+
+    private static byte[] compress(NbtCompound nbt) throws IOException {
+        var output = new ByteArrayOutputStream();
+        NbtIo.writeCompressed(nbt, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Read a chunk compound, filling in its position from the index.
+     *
+     * @param maxBytes The most NBT the chunk may decompress to.
+     */
+    static NbtCompound readChunk(ByteBuffer buffer, long pos, long maxBytes) throws IOException {
+        var chunkRoot = decompress(buffer, maxBytes);
+        var sectionPos = ChunkSectionPos.from(pos);
+        chunkRoot.putIntArray("pos", new int[] { sectionPos.getX(), sectionPos.getY(), sectionPos.getZ() });
+        return chunkRoot;
+    }
+
+    static NbtCompound decompress(ByteBuffer buffer, long maxBytes) throws IOException {
+        var input = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+        try {
+            return NbtIo.readCompressed(input, NbtTagSizeTracker.of(maxBytes));
+        } catch (NbtSizeValidationException e) {
+            throw new IOException("Template is too large: " + e.getMessage(), e);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        if (length < 0) throw new IOException("Invalid length " + length);
+        var buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void transferFully(FileChannel input, long position, long length, FileChannel output)
+            throws IOException {
+        while (length > 0) {
+            long transferred = input.transferTo(position, length, output);
+            if (transferred <= 0) {
+                throw new EOFException();
+            }
+            position += transferred;
+            length -= transferred;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.betrayd.map_templates;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+import net.betrayd.map_templates.TemplateMetrics.Phase;
+
+/**
+ * Records every template operation as a JFR event, so that loads and placements
+ * can be lined up against tick times in a flight recording. Events are only
+ * created while a recording with the <code>map_templates.TemplateOperation</code>
+ * event enabled is running.
+ * <p>
+ * To use it, call
+ * <code>TemplateMetrics.setListener(new JfrTemplateMetricsListener())</code>.
+ */
+public class JfrTemplateMetricsListener implements TemplateMetricsListener {
+    /**
+     * Events of operations in progress. Operations that fail never finish, so
+     * their events are dropped along with their metrics.
+     */
+    private final Map<TemplateMetrics, TemplateOperationEvent> events = Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public void onStart(TemplateMetrics metrics) {
+        var event = new TemplateOperationEvent();
+        if (!event.isEnabled()) return;
+
+        event.begin();
+        this.events.put(metrics, event);
+    }
+
+    @Override
+    public void onFinish(TemplateMetrics metrics) {
+        var event = this.events.remove(metrics);
+        if (event == null) return;
+
+        event.end();
+        if (!event.shouldCommit()) return;
+
+        event.operation = metrics.getOperation().name();
+        event.template = metrics.getName();
+
+        event.decompress = metrics.getNanos(Phase.DECOMPRESS);
+        event.parse = metrics.getNanos(Phase.PARSE);
+        event.datafix = metrics.getNanos(Phase.DATAFIX);
+        event.deserialize = metrics.getNanos(Phase.DESERIALIZE);
+        event.serialize = metrics.getNanos(Phase.SERIALIZE);
+        event.compress = metrics.getNanos(Phase.COMPRESS);
+        event.placeBlocks = metrics.getNanos(Phase.PLACE_BLOCKS);
+        event.placeBlockEntities = metrics.getNanos(Phase.PLACE_BLOCK_ENTITIES);
+        event.spawnEntities = metrics.getNanos(Phase.SPAWN_ENTITIES);
+        event.captureBlocks = metrics.getNanos(Phase.CAPTURE_BLOCKS);
+        event.captureEntities = metrics.getNanos(Phase.CAPTURE_ENTITIES);
+
+        event.sections = metrics.getSections();
+        event.blockEntities = metrics.getBlockEntities();
+        event.entities = metrics.getEntities();
+
+        event.commit();
+    }
+
+    @Name("map_templates.TemplateOperation")
+    @Label("Map Template Operation")
+    @Category("Map Templates")
+    @Description("A map template load, save, placement or export")
+    static class TemplateOperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Template")
+        String template;
+
+        @Label("Decompress")
+        @Timespan
+        long decompress;
+
+        @Label("Parse")
+        @Timespan
+        long parse;
+
+        @Label("Datafix")
+        @Description("Summed across worker threads")
+        @Timespan
+        long datafix;
+
+        @Label("Deserialize")
+        @Description("Summed across worker threads")
+        @Timespan
+        long deserialize;
+
+        @Label("Serialize")
+        @Timespan
+        long serialize;
+
+        @Label("Compress")
+        @Timespan
+        long compress;
+
+        @Label("Place Blocks")
+        @Timespan
+        long placeBlocks;
+
+        @Label("Place Block Entities")
+        @Timespan
+        long placeBlockEntities;
+
+        @Label("Spawn Entities")
+        @Timespan
+        long spawnEntities;
+
+        @Label("Capture Blocks")
+        @Description("Summed across worker threads")
+        @Timespan
+        long captureBlocks;
+
+        @Label("Capture Entities")
+        @Timespan
+        long captureEntities;
+
+        @Label("Sections")
+        int sections;
+
+        @Label("Block Entities")
+        int blockEntities;
+
+        @Label("Entities")
+        int entities;
+    }
+}
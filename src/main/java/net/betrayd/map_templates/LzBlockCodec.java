@@ -0,0 +1,198 @@
+package net.betrayd.map_templates;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A small LZ77 block compressor using the LZ4 block layout. It trades
+ * compression ratio for very cheap decoding: a block is just literal runs and
+ * back-references, with no entropy coding.
+ * <p>
+ * Each sequence is a token byte (literal length in the high nibble, match
+ * length minus 4 in the low nibble), extra literal length bytes, the literals,
+ * a little-endian 16-bit offset and extra match length bytes. Nibbles of 15 are
+ * followed by bytes that are added to them until a byte isn't 255. The last
+ * sequence of a block has literals only.
+ */
+final class LzBlockCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    /**
+     * The last literals of a block are never part of a match, and no match
+     * starts this close to the end.
+     */
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+
+    private static final int HASH_BITS = 14;
+
+    private LzBlockCodec() {
+    }
+
+    /**
+     * @return The largest possible compressed size of a block.
+     */
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compress a block.
+     *
+     * @param src    Uncompressed data.
+     * @param length Length of the data.
+     * @param dst    Buffer of at least {@link #maxCompressedLength} bytes.
+     * @param table  Scratch hash table of {@link #createTable()}.
+     * @return The compressed length.
+     */
+    static int compress(byte[] src, int length, byte[] dst, int[] table) {
+        Arrays.fill(table, -1);
+
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+
+        int matchFindLimit = length - MATCH_FIND_LIMIT;
+        while (ip < matchFindLimit) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = ip;
+
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            int maxMatch = length - LAST_LITERALS - ip;
+            while (matchLength < maxMatch && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        return writeSequence(src, anchor, length - anchor, dst, op, 0, 0);
+    }
+
+    static int[] createTable() {
+        return new int[1 << HASH_BITS];
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dst, int op,
+            int offset, int matchLength) {
+        int tokenPos = op++;
+        int token;
+
+        if (literalLength >= 15) {
+            token = 15 << 4;
+            op = writeLength(dst, op, literalLength - 15);
+        } else {
+            token = literalLength << 4;
+        }
+
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+
+        // The last sequence has no match.
+        if (matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+
+            int extra = matchLength - MIN_MATCH;
+            if (extra >= 15) {
+                token |= 15;
+                op = writeLength(dst, op, extra - 15);
+            } else {
+                token |= extra;
+            }
+        }
+
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * Decompress a block.
+     *
+     * @param src       Compressed data.
+     * @param rawLength Expected uncompressed length.
+     * @return The uncompressed data.
+     * @throws IOException If the block is corrupt.
+     */
+    static byte[] decompress(byte[] src, int rawLength) throws IOException {
+        byte[] dst = new byte[rawLength];
+        int ip = 0;
+        int op = 0;
+
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+
+                if (ip == src.length) break;
+
+                int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+                int matchLength = token & 0xF;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                int ref = op - offset;
+                if (offset == 0 || ref < 0) {
+                    throw new IOException("Invalid back-reference in template block");
+                }
+
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                } else {
+                    // Overlapping matches repeat the bytes just written.
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[op + i] = dst[ref + i];
+                    }
+                }
+                op += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt template block", e);
+        }
+
+        if (op != rawLength) {
+            throw new IOException("Template block decompressed to " + op + " bytes, expected " + rawLength);
+        }
+        return dst;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
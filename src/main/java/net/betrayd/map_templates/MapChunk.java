@@ -36,7 +36,38 @@ public final class MapChunk {
 
     private final ChunkSectionPos pos;
 
-    private PalettedContainer<BlockState> container = new PalettedContainer<>(Block.STATE_IDS, Blocks.AIR.getDefaultState(), PalettedContainer.PaletteProvider.BLOCK_STATE);
+    /**
+     * The blocks of this chunk, or <code>null</code> if every block is
+     * {@link #uniformState}. Empty and single-block chunks don't need a
+     * container until they're modified.
+     */
+    @Nullable
+    private PalettedContainer<BlockState> container;
+    private BlockState uniformState = Blocks.AIR.getDefaultState();
+    private int nonAirCount;
+    /**
+     * The number of blocks that count as air but aren't plain air, such as cave
+     * air. They aren't counted by {@link #nonAirCount}, but still have to be kept.
+     */
+    private int otherAirCount;
+    /**
+     * Whether {@link #container} may be used by other chunks as well. Shared
+     * containers are never modified; the first write copies them.
+     * <p>
+     * Copying a chunk sets this on the chunk being copied, which may happen on
+     * another thread than the one writing to it, so it's volatile.
+     */
+    private volatile boolean shared;
+    /**
+     * Whether this chunk has changed since it was last saved to or loaded from
+     * an indexed file. New chunks start out dirty.
+     */
+    private boolean dirty = true;
+    /**
+     * Incremented whenever the blocks of this chunk change, so caches built from
+     * them can tell when they're out of date.
+     */
+    private int modCount;
     // private final List<MapEntity> entities = new ArrayList<>();
     // private final Map<BlockPos, NbtCompound> blockEntities = new HashMap<>();
     private final Long2ObjectMap<NbtCompound> blockEntities = new Long2ObjectOpenHashMap<>();
@@ -54,7 +85,86 @@ public final class MapChunk {
      * @param state Block state to set.
      */
     public void set(int x, int y, int z, BlockState state) {
-        this.container.set(x, y, z, state);
+        if (!this.prepareWrite(state)) return;
+        this.onChanged(this.container.swap(x, y, z, state), state);
+    }
+
+    /**
+     * Set a block without the container's concurrent modification checks. Only
+     * for chunks that no other thread can see yet.
+     */
+    void setUnchecked(int x, int y, int z, BlockState state) {
+        if (!this.prepareWrite(state)) return;
+        this.onChanged(this.container.swapUnsafe(x, y, z, state), state);
+    }
+
+    /**
+     * Make sure this chunk has a container of its own to write to.
+     *
+     * @return <code>false</code> if the write can be skipped because the chunk is
+     *         uniform and already has this state.
+     */
+    private boolean prepareWrite(BlockState state) {
+        if (this.container == null) {
+            if (state == this.uniformState) return false;
+            this.container = createContainer(this.uniformState);
+        } else if (this.shared) {
+            this.container = this.container.copy();
+            this.shared = false;
+        }
+        return true;
+    }
+
+    private void onChanged(BlockState previous, BlockState state) {
+        if (previous != state) {
+            this.dirty = true;
+            this.modCount++;
+        }
+        if (previous.isAir() != state.isAir()) {
+            this.nonAirCount += state.isAir() ? -1 : 1;
+        }
+        if (isOtherAir(previous)) this.otherAirCount--;
+        if (isOtherAir(state)) this.otherAirCount++;
+
+        // Drop the container again once the chunk is plain air again.
+        if (this.nonAirCount == 0 && this.otherAirCount == 0) {
+            this.container = null;
+            this.shared = false;
+            this.uniformState = Blocks.AIR.getDefaultState();
+        }
+    }
+
+    private static boolean isOtherAir(BlockState state) {
+        return state.isAir() && !state.isOf(Blocks.AIR);
+    }
+
+    private static PalettedContainer<BlockState> createContainer(BlockState state) {
+        return new PalettedContainer<>(Block.STATE_IDS, state, PalettedContainer.PaletteProvider.BLOCK_STATE);
+    }
+
+    /**
+     * Replace the blocks of this chunk with a container, counting its blocks and
+     * dropping it if every block is the same.
+     */
+    private void setContainer(PalettedContainer<BlockState> container) {
+        this.dirty = true;
+        this.modCount++;
+        this.shared = false;
+        this.nonAirCount = 0;
+        this.otherAirCount = 0;
+        this.uniformState = null;
+        container.count((state, count) -> {
+            if (!state.isAir()) this.nonAirCount += count;
+            if (isOtherAir(state)) this.otherAirCount += count;
+            if (count == 4096) this.uniformState = state;
+        });
+
+        if (this.uniformState != null) {
+            this.container = null;
+        } else {
+            this.container = container;
+            this.uniformState = Blocks.AIR.getDefaultState();
+        }
     }
 
     /**
@@ -76,7 +186,8 @@ public final class MapChunk {
      * @return The block state at this position.
      */
     public BlockState get(int x, int y, int z) {
-        return this.container.get(x, y, z);
+        var container = this.container;
+        return container != null ? container.get(x, y, z) : this.uniformState;
     }
 
     /**
@@ -112,6 +223,25 @@ public final class MapChunk {
         return this.pos;
     }
 
+    /**
+     * Get the block state container backing this chunk. The container is shared,
+     * so callers must not modify it. Chunks where every block is the same don't
+     * keep a container, so a new one is created for them.
+     *
+     * @return The block state container.
+     */
+    PalettedContainer<BlockState> getContainer() {
+        var container = this.container;
+        return container != null ? container : createContainer(this.uniformState);
+    }
+
+    /**
+     * @return The number of blocks in this chunk that aren't air.
+     */
+    int getNonAirCount() {
+        return this.nonAirCount;
+    }
+
     // /**
     //  * Returns the entities in this chunk.
     //  *
@@ -200,12 +330,159 @@ public final class MapChunk {
         nbt.putInt("y", pos.getY());
         nbt.putInt("z", pos.getZ());
 
+        this.dirty = true;
         return blockEntities.put(BlockPos.asLong(x, y, z), nbt);
     }
 
+    /**
+     * Check whether this chunk has changed since it was last saved with
+     * {@link MapTemplateSerializer#saveIndexedDelta}, or since it was loaded
+     * from the file it was saved to.
+     *
+     * @return Whether the chunk has unsaved changes.
+     */
+    public boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * Mark this chunk as changed. Block and block entity changes made through
+     * this class are tracked on their own, but changes made directly to block
+     * entity NBT or to the map from {@link #getBlockEntities()} are not, and
+     * must be followed by a call to this.
+     */
+    public void markDirty() {
+        this.dirty = true;
+    }
+
+    void markClean() {
+        this.dirty = false;
+    }
+
+    /**
+     * @return A counter that changes whenever the blocks of this chunk do.
+     */
+    int getModCount() {
+        return this.modCount;
+    }
+
+    /**
+     * Create a deep copy of this chunk.
+     * <p>
+     * The blocks are shared with the copy until either chunk is modified, so
+     * this marks this chunk's container as shared. Copying is safe alongside
+     * other reads and copies, but not alongside writes to this chunk.
+     *
+     * @return The copy.
+     */
+    public MapChunk copy() {
+        return this.copy(this.pos);
+    }
+
+    /**
+     * Create a deep copy of this chunk at another position.
+     *
+     * @param pos Position of the copy.
+     * @return The copy.
+     */
+    MapChunk copy(ChunkSectionPos pos) {
+        MapChunk chunk = new MapChunk(pos);
+        chunk.copyBlocksFrom(this);
+        for (var entry : this.blockEntities.long2ObjectEntrySet()) {
+            chunk.blockEntities.put(entry.getLongKey(), entry.getValue().copy());
+        }
+        return chunk;
+    }
+
+    /**
+     * @return Whether every block in this chunk is air.
+     */
+    boolean isEmpty() {
+        return this.nonAirCount == 0;
+    }
+
+    /**
+     * @return Whether no block in this chunk is air.
+     */
+    boolean isFull() {
+        return this.nonAirCount == 4096;
+    }
+
+    /**
+     * @return Whether this chunk has any blocks or block entities worth keeping.
+     */
+    boolean hasContent() {
+        return this.nonAirCount > 0 || this.otherAirCount > 0 || !this.blockEntities.isEmpty();
+    }
+
+    /**
+     * Replace every block in this chunk with the blocks of another chunk. Block
+     * entities are left alone.
+     * <p>
+     * The container isn't copied; both chunks share it until either of them is
+     * modified. This marks the container as shared in <code>other</code> as
+     * well, so <code>other</code> is written to even though its blocks don't
+     * change.
+     *
+     * @param other Chunk to copy blocks from.
+     */
+    void copyBlocksFrom(MapChunk other) {
+        var container = other.container;
+        if (container != null) {
+            other.shared = true;
+        }
+
+        this.dirty = true;
+        this.modCount++;
+        this.container = container;
+        this.shared = container != null;
+        this.uniformState = other.uniformState;
+        this.nonAirCount = other.nonAirCount;
+        this.otherAirCount = other.otherAirCount;
+    }
+
+    /**
+     * Replace this chunk's container with an identical one from a pool, so
+     * chunks with the same blocks share a single container.
+     *
+     * @param pool Pool to share containers through.
+     */
+    void intern(SectionPool pool) {
+        var container = this.container;
+        if (container == null) return;
+
+        // Once a container is in the pool, other chunks may pick it up at any time.
+        this.container = pool.intern(container);
+        this.shared = true;
+    }
+
+    /**
+     * Roughly estimate the heap footprint of this chunk.
+     *
+     * @return The estimated size, in bytes.
+     */
+    long estimateSize() {
+        long size = this.container != null ? this.container.getPacketSize() : 0;
+        for (var nbt : this.blockEntities.values()) {
+            size += nbt.getSizeInBytes();
+        }
+        return size;
+    }
+
     public void serialize(NbtCompound nbt) {
-        nbt.put("block_states", BLOCK_CODEC.encodeStart(NbtOps.INSTANCE, container).getOrThrow(false, LOGGER::error));
+        nbt.put("block_states", encodeBlocks(this.getContainer()));
+        this.serializeBlockEntities(nbt);
+    }
+
+    static NbtElement encodeBlocks(PalettedContainer<BlockState> container) {
+        return BLOCK_CODEC.encodeStart(NbtOps.INSTANCE, container).getOrThrow(false, LOGGER::error);
+    }
 
+    /**
+     * Write only the block entities of this chunk, for when its blocks are
+     * stored elsewhere.
+     */
+    void serializeBlockEntities(NbtCompound nbt) {
         if (!this.blockEntities.isEmpty()) {
             NbtList blockEntitiesList = new NbtList();
             for (var entry : this.blockEntities.long2ObjectEntrySet()) {
@@ -225,11 +502,15 @@ public final class MapChunk {
 
     public static MapChunk deserialize(ChunkSectionPos pos, NbtCompound nbt) {
         MapChunk chunk = new MapChunk(pos);
-        var container = BLOCK_CODEC.parse(NbtOps.INSTANCE, nbt.getCompound("block_states"))
-                .promotePartial(LOGGER::error).get().left();
-        
-        if (container.isPresent()) {
-            chunk.container = container.get();
+
+        // Chunks whose blocks are stored in a section table don't have their own.
+        if (nbt.contains("block_states", NbtElement.COMPOUND_TYPE)) {
+            var container = BLOCK_CODEC.parse(NbtOps.INSTANCE, nbt.getCompound("block_states"))
+                    .promotePartial(LOGGER::error).get().left();
+
+            if (container.isPresent()) {
+                chunk.setContainer(container.get());
+            }
         }
 
         NbtList blockEntitiesList = nbt.getList("block_entities", NbtElement.COMPOUND_TYPE);
@@ -249,7 +530,7 @@ public final class MapChunk {
                     continue;
                 }
 
-                chunk.putBlockEntity(x, y, z, nbt);
+                chunk.putBlockEntity(x, y, z, ent);
             }
         }
 
@@ -264,11 +545,24 @@ public final class MapChunk {
      */
     public static MapChunk loadFrom(ChunkSectionPos pos, ChunkSection section) {
         MapChunk chunk = new MapChunk(pos);
-        chunk.container = section.getBlockStateContainer().copy();
+        if (hasBlocks(section)) {
+            chunk.setContainer(section.getBlockStateContainer().copy());
+        }
 
         return chunk;
     }
 
+    /**
+     * Check whether a section holds anything but plain air. Sections of cave air
+     * count as empty in the world, but their blocks are still kept.
+     *
+     * @param section Chunk section to check.
+     * @return Whether the section has any blocks worth keeping.
+     */
+    static boolean hasBlocks(ChunkSection section) {
+        return !section.isEmpty() || section.getBlockStateContainer().hasAny(MapChunk::isOtherAir);
+    }
+
     /**
      * Check if a given block is in a given chunk section.
      * 
@@ -0,0 +1,35 @@
+package net.betrayd.map_templates;
+
+import java.io.Closeable;
+
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.longs.LongIterable;
+
+/**
+ * Supplies the chunks of a template that live outside the heap, loading each
+ * one only when it's first needed. Implementations must be safe to call from
+ * multiple threads.
+ * <p>
+ * Chunks handed out by a source are treated as read-only. A template takes
+ * ownership of a chunk before modifying it, after which the source is no longer
+ * consulted for that position.
+ */
+interface MapChunkSource extends Closeable {
+
+    /**
+     * @return The positions of every chunk this source can supply. Each position
+     *         is visited once.
+     */
+    LongIterable getPositions();
+
+    /**
+     * Get a chunk, loading it if necessary.
+     *
+     * @param pos Chunk section position.
+     * @return The chunk, or <code>null</code> if this source has no chunk there.
+     * @throws java.io.UncheckedIOException If the chunk could not be read.
+     */
+    @Nullable
+    MapChunk get(long pos);
+}
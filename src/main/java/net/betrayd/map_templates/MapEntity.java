@@ -35,7 +35,14 @@ public record MapEntity(Vec3d position, NbtCompound nbt) {
     }
 
     public void createEntities(World world, BlockPos origin, Consumer<Entity> consumer) {
-        var nbt = this.createEntityNbt(origin);
+        createEntities(world, this.createEntityNbt(origin), consumer);
+    }
+
+    /**
+     * Create entities from NBT that has already been moved into world space by
+     * {@link #createEntityNbt}.
+     */
+    static void createEntities(World world, NbtCompound nbt, Consumer<Entity> consumer) {
         EntityType.loadEntityWithPassengers(nbt, world, entity -> {
             consumer.accept(entity);
             return entity;
@@ -49,6 +56,21 @@ public record MapEntity(Vec3d position, NbtCompound nbt) {
             return null;
         }
 
+        return fromSavedEntity(nbt, entity.getBlockPos(), position);
+    }
+
+    /**
+     * Create a map entity from an entity that has already been saved. Unlike
+     * {@link #fromEntity}, this doesn't touch the entity, so it's safe to call off
+     * the server thread.
+     *
+     * @param nbt            NBT the entity was saved to. It becomes the map
+     *                       entity's NBT.
+     * @param entityBlockPos Block position of the entity when it was saved.
+     * @param position       Template-space position of the entity.
+     * @return The map entity.
+     */
+    static MapEntity fromSavedEntity(NbtCompound nbt, BlockPos entityBlockPos, Vec3d position) {
         // Avoid conflicts.
         nbt.remove("UUID");
 
@@ -58,7 +80,7 @@ public record MapEntity(Vec3d position, NbtCompound nbt) {
         // AbstractDecorationEntity has special position handling with an attachment position.
         if (nbt.contains("TileX", NbtElement.INT_TYPE)) {
             BlockPos localPos = new BlockPos(nbt.getInt("TileX"), nbt.getInt("TileY"), nbt.getInt("TileZ"))
-                    .subtract(entity.getBlockPos())
+                    .subtract(entityBlockPos)
                     .add(MathHelper.floor(position.getX()), MathHelper.floor(position.getY()), MathHelper.floor(position.getZ()))
                     .subtract(minChunkPos);
             nbt.putInt("TileX", localPos.getX());
@@ -0,0 +1,341 @@
+package net.betrayd.map_templates;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import net.minecraft.block.BlockState;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.Heightmap;
+
+/**
+ * Caches the top block of every column of a template, per heightmap type.
+ * <p>
+ * Heights are stored per chunk column as a flat array of 256 Y values, indexed
+ * by <code>z << 4 | x</code>. A whole chunk column is computed the first time
+ * any column in it is queried. Block changes update the cached height in place
+ * where possible, and otherwise only mark that single column as unknown.
+ * <p>
+ * Each cached chunk column remembers the {@linkplain MapChunk#getModCount()
+ * modification count} of the chunks it was computed from, so chunks modified
+ * directly rather than through {@link MapTemplate#setBlockState} are noticed on
+ * the next lookup. All methods are synchronized, so a template's heights may be
+ * queried from several threads at once.
+ */
+final class MapHeightmaps {
+    /**
+     * The column needs to be recomputed.
+     */
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+    /**
+     * The column has no block matching the heightmap.
+     */
+    private static final int NONE = Integer.MIN_VALUE + 1;
+
+    private final Map<Heightmap.Type, Long2ObjectMap<Column>> heightmaps = new EnumMap<>(Heightmap.Type.class);
+
+    /**
+     * Get the Y of the topmost block matching a heightmap within the template's
+     * bounds.
+     *
+     * @return The Y value, or <code>0</code> if no block in the column matches.
+     */
+    synchronized int getTopY(MapTemplate template, int x, int z, Heightmap.Type type) {
+        var columns = this.heightmaps.computeIfAbsent(type, t -> new Long2ObjectOpenHashMap<>());
+
+        long key = ChunkPos.toLong(x >> 4, z >> 4);
+        Column column = columns.get(key);
+        if (column == null || column.isStale()) {
+            column = new Column();
+            column.trackChunks(template, x >> 4, z >> 4);
+            columns.put(key, column);
+        }
+
+        int[] heights = column.heights;
+        int index = (z & 0xF) << 4 | (x & 0xF);
+        if (heights[index] == UNKNOWN) {
+            compute(template, x >> 4, z >> 4, type, heights);
+        }
+
+        int y = heights[index];
+        return y != NONE ? y : 0;
+    }
+
+    /**
+     * Fill every unknown column of a chunk column, going through the template
+     * one section at a time from the top.
+     */
+    private static void compute(MapTemplate template, int chunkX, int chunkZ, Heightmap.Type type, int[] heights) {
+        var predicate = type.getBlockPredicate();
+
+        var bounds = template.getBounds();
+        int minY = bounds.min().getY();
+        int maxY = bounds.max().getY();
+
+        boolean[] pending = new boolean[heights.length];
+        int remaining = 0;
+        for (int i = 0; i < heights.length; i++) {
+            if (heights[i] == UNKNOWN) {
+                heights[i] = NONE;
+                pending[i] = true;
+                remaining++;
+            }
+        }
+
+        for (int sectionY = maxY >> 4; sectionY >= minY >> 4 && remaining > 0; sectionY--) {
+            MapChunk chunk = template.getChunk(MapTemplate.chunkPos(chunkX, sectionY, chunkZ));
+            if (chunk == null) continue;
+
+            int top = Math.min(15, maxY - (sectionY << 4));
+            int bottom = Math.max(0, minY - (sectionY << 4));
+
+            for (int i = 0; i < heights.length; i++) {
+                if (!pending[i]) continue;
+
+                int x = i & 0xF;
+                int z = i >> 4;
+                for (int y = top; y >= bottom; y--) {
+                    if (predicate.test(chunk.get(x, y, z))) {
+                        heights[i] = (sectionY << 4) + y;
+                        pending[i] = false;
+                        remaining--;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Update the cached heights after a block has been set.
+     *
+     * @param bounds        The template's explicit bounds, if it has any. Blocks
+     *                      outside them don't affect the heightmaps.
+     * @param chunk         The chunk the block was set in.
+     * @param lastModCount  The modification count of the chunk before the block
+     *                      was set. If the chunk has been modified some other way
+     *                      since the heights were cached, they can't be updated
+     *                      in place and are recomputed on the next lookup.
+     */
+    synchronized void onBlockChanged(int x, int y, int z, BlockState state, @Nullable BlockBounds bounds,
+            MapChunk chunk, int lastModCount) {
+        if (this.heightmaps.isEmpty()) return;
+        boolean inBounds = bounds == null || (y >= bounds.min().getY() && y <= bounds.max().getY());
+
+        long key = ChunkPos.toLong(x >> 4, z >> 4);
+        int index = (z & 0xF) << 4 | (x & 0xF);
+
+        for (var entry : this.heightmaps.entrySet()) {
+            Column column = entry.getValue().get(key);
+            if (column == null) continue;
+
+            int chunkIndex = column.indexOf(chunk);
+            if (chunkIndex < 0 || column.modCounts[chunkIndex] != lastModCount) continue;
+            column.modCounts[chunkIndex] = chunk.getModCount();
+            if (!inBounds) continue;
+
+            int[] heights = column.heights;
+            int top = heights[index];
+            if (top == UNKNOWN) continue;
+
+            if (entry.getKey().getBlockPredicate().test(state)) {
+                if (top == NONE || y > top) heights[index] = y;
+            } else if (y == top) {
+                // The top block was removed; the next one down isn't known.
+                heights[index] = UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * Start tracking a chunk that the template has taken ownership of. The chunk
+     * must have the same blocks as whatever the template had at its position
+     * before, either a chunk from its chunk source or nothing at all.
+     */
+    synchronized void onChunkOwned(MapChunk chunk) {
+        if (this.heightmaps.isEmpty()) return;
+
+        var pos = chunk.getPos();
+        long key = ChunkPos.toLong(pos.getSectionX(), pos.getSectionZ());
+        for (var columns : this.heightmaps.values()) {
+            Column column = columns.get(key);
+            if (column != null) column.track(chunk);
+        }
+    }
+
+    /**
+     * Forget the heights of a whole chunk column, for when a chunk in it has been
+     * replaced.
+     */
+    synchronized void invalidateChunk(int chunkX, int chunkZ) {
+        if (this.heightmaps.isEmpty()) return;
+
+        long key = ChunkPos.toLong(chunkX, chunkZ);
+        for (var columns : this.heightmaps.values()) {
+            columns.remove(key);
+        }
+    }
+
+    synchronized void clear() {
+        this.heightmaps.clear();
+    }
+
+    /**
+     * Copy the cached heights for a copy of the template.
+     *
+     * @param template The copied template, whose chunks the copy should track.
+     */
+    synchronized MapHeightmaps copy(MapTemplate template) {
+        var copy = new MapHeightmaps();
+        for (var entry : this.heightmaps.entrySet()) {
+            var columns = new Long2ObjectOpenHashMap<Column>(entry.getValue().size());
+            for (var column : Long2ObjectMaps.fastIterable(entry.getValue())) {
+                if (column.getValue().isStale()) continue;
+                columns.put(column.getLongKey(), column.getValue().copy(template));
+            }
+            copy.heightmaps.put(entry.getKey(), columns);
+        }
+        return copy;
+    }
+
+    synchronized boolean isEmpty() {
+        return this.heightmaps.isEmpty();
+    }
+
+    /**
+     * Write the cached heights. Each type is stored as a list of chunk column
+     * positions and the concatenated height arrays of those columns. Columns that
+     * are out of date are left out.
+     */
+    synchronized NbtCompound serialize(NbtCompound nbt) {
+        for (var entry : this.heightmaps.entrySet()) {
+            var positionList = new LongArrayList(entry.getValue().size());
+            var heightList = new IntArrayList(entry.getValue().size() * 256);
+            for (var column : Long2ObjectMaps.fastIterable(entry.getValue())) {
+                if (column.getValue().isStale()) continue;
+                positionList.add(column.getLongKey());
+                heightList.addElements(heightList.size(), column.getValue().heights);
+            }
+            if (positionList.isEmpty()) continue;
+
+            long[] positions = positionList.toLongArray();
+            int[] heights = heightList.toIntArray();
+
+            var typeNbt = new NbtCompound();
+            typeNbt.putLongArray("columns", positions);
+            typeNbt.putIntArray("heights", heights);
+            nbt.put(entry.getKey().asString(), typeNbt);
+        }
+        return nbt;
+    }
+
+    /**
+     * Read cached heights, tracking the chunks the template has already loaded.
+     */
+    synchronized void deserialize(NbtCompound nbt, MapTemplate template) {
+        Long2ObjectMap<List<MapChunk>> chunksByColumn = null;
+
+        for (Heightmap.Type type : Heightmap.Type.values()) {
+            if (!nbt.contains(type.asString(), NbtElement.COMPOUND_TYPE)) continue;
+
+            var typeNbt = nbt.getCompound(type.asString());
+            long[] positions = typeNbt.getLongArray("columns");
+            int[] heights = typeNbt.getIntArray("heights");
+            if (heights.length != positions.length * 256) continue;
+
+            if (chunksByColumn == null) {
+                chunksByColumn = new Long2ObjectOpenHashMap<>();
+                for (MapChunk chunk : template.chunks.values()) {
+                    var pos = chunk.getPos();
+                    chunksByColumn.computeIfAbsent(ChunkPos.toLong(pos.getSectionX(), pos.getSectionZ()),
+                            k -> new ArrayList<>()).add(chunk);
+                }
+            }
+
+            var columns = new Long2ObjectOpenHashMap<Column>(positions.length);
+            for (int i = 0; i < positions.length; i++) {
+                var column = new Column();
+                System.arraycopy(heights, i * 256, column.heights, 0, 256);
+                for (MapChunk chunk : chunksByColumn.getOrDefault(positions[i], List.of())) {
+                    column.track(chunk);
+                }
+                columns.put(positions[i], column);
+            }
+            this.heightmaps.put(type, columns);
+        }
+    }
+
+    /**
+     * The heights of one chunk column, along with the chunks they were computed
+     * from. Only chunks owned by the template are tracked; chunks in its chunk
+     * source never change.
+     */
+    private static final class Column {
+        private static final MapChunk[] NO_CHUNKS = new MapChunk[0];
+
+        final int[] heights = new int[256];
+        MapChunk[] chunks = NO_CHUNKS;
+        int[] modCounts = new int[0];
+
+        Column() {
+            Arrays.fill(this.heights, UNKNOWN);
+        }
+
+        void trackChunks(MapTemplate template, int chunkX, int chunkZ) {
+            var bounds = template.getBounds();
+            for (int sectionY = bounds.min().getY() >> 4; sectionY <= bounds.max().getY() >> 4; sectionY++) {
+                MapChunk chunk = template.chunks.get(MapTemplate.chunkPos(chunkX, sectionY, chunkZ));
+                if (chunk != null) this.track(chunk);
+            }
+        }
+
+        void track(MapChunk chunk) {
+            if (this.indexOf(chunk) >= 0) return;
+
+            int size = this.chunks.length;
+            this.chunks = Arrays.copyOf(this.chunks, size + 1);
+            this.modCounts = Arrays.copyOf(this.modCounts, size + 1);
+            this.chunks[size] = chunk;
+            this.modCounts[size] = chunk.getModCount();
+        }
+
+        int indexOf(MapChunk chunk) {
+            for (int i = 0; i < this.chunks.length; i++) {
+                if (this.chunks[i] == chunk) return i;
+            }
+            return -1;
+        }
+
+        /**
+         * @return Whether a tracked chunk has been modified without the heights
+         *         being updated.
+         */
+        boolean isStale() {
+            for (int i = 0; i < this.chunks.length; i++) {
+                if (this.chunks[i].getModCount() != this.modCounts[i]) return true;
+            }
+            return false;
+        }
+
+        Column copy(MapTemplate template) {
+            var copy = new Column();
+            System.arraycopy(this.heights, 0, copy.heights, 0, 256);
+            for (MapChunk chunk : this.chunks) {
+                MapChunk copied = template.chunks.get(chunk.getPos().asLong());
+                if (copied != null) copy.track(copied);
+            }
+            return copy;
+        }
+    }
+}
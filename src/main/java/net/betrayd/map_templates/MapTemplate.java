@@ -3,6 +3,7 @@ package net.betrayd.map_templates;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterable;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
 import net.minecraft.block.entity.BlockEntity;
@@ -25,10 +26,16 @@ import net.minecraft.world.biome.BiomeKeys;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractCollection;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 /**
@@ -37,12 +44,38 @@ import java.util.stream.Stream;
  * A map template stores serialized chunks, block entities, entities, the bounds, the biome, and regions.
  * <p>
  * It can be loaded from resources with {@link MapTemplateSerializer#loadFromResource(MinecraftServer, Identifier)}.
+ * Large templates saved in the indexed format can be opened lazily with {@link MapTemplateSerializer#openIndexed},
+ * in which case chunks are only read once they are accessed.
  */
 public final class MapTemplate {
     private static final BlockState AIR = Blocks.AIR.getDefaultState();
 
     final Long2ObjectMap<MapChunk> chunks = new Long2ObjectOpenHashMap<>();
     final Collection<MapEntity> entities = new ArrayList<>();
+    /**
+     * The same entities as {@link #entities}, bucketed by the section they're in.
+     */
+    final Long2ObjectMap<List<MapEntity>> entitiesBySection = new Long2ObjectOpenHashMap<>();
+    private final Collection<MapEntity> entityView = new EntityView();
+
+    /**
+     * Chunks that haven't been loaded into {@link #chunks} yet, if this template
+     * was opened lazily.
+     */
+    @Nullable
+    MapChunkSource chunkSource;
+    /**
+     * Whether a {@linkplain #snapshotChunks() snapshot} reads from
+     * {@link #chunkSource}, so chunks from it must be copied before they're
+     * modified.
+     */
+    private boolean chunkSourceShared;
+
+    /**
+     * The indexed file this template was last saved to or opened from, if any.
+     */
+    @Nullable
+    IndexedTemplateFormat.SaveState savedState;
 
     RegistryKey<Biome> biome = BiomeKeys.THE_VOID;
 
@@ -51,13 +84,48 @@ public final class MapTemplate {
 
     MapTemplateMetadata metadata = new MapTemplateMetadata();
 
+    MapHeightmaps heightmaps = new MapHeightmaps();
+    /**
+     * Whether cached heights are saved with this template. Off by default, so
+     * that looking heights up doesn't make every save larger.
+     */
+    boolean saveHeightmaps;
+
     private MapTemplate() {
     }
 
     public static MapTemplate createEmpty() {
         return new MapTemplate();
     }
-    
+
+    /**
+     * Creates a deep copy of this template. Modifying the copy does not affect
+     * the original, and vice versa.
+     *
+     * @return the copied template
+     */
+    public MapTemplate copy() {
+        this.loadFully();
+        var result = new MapTemplate();
+
+        for (var entry : Long2ObjectMaps.fastIterable(this.chunks)) {
+            result.chunks.put(entry.getLongKey(), entry.getValue().copy());
+        }
+
+        for (MapEntity entity : this.entities) {
+            result.addEntity(new MapEntity(entity.position(), entity.nbt().copy()));
+        }
+
+        result.biome = this.biome;
+        result.bounds = this.bounds;
+        result.generatedBounds = this.generatedBounds;
+        result.metadata = this.metadata.copy();
+        result.heightmaps = this.heightmaps.copy(result);
+        result.saveHeightmaps = this.saveHeightmaps;
+
+        return result;
+    }
+
 
     /**
      * Sets the biome key of the map template.
@@ -88,14 +156,16 @@ public final class MapTemplate {
     }
 
     public void setBlockState(int x, int y, int z, BlockState state) {
-        MapChunk chunk = this.getOrCreateChunk(chunkPos(x, y, z));
+        MapChunk chunk = this.ownChunk(chunkPos(x >> 4, y >> 4, z >> 4));
 
         int localX = x & 0xF;
         int localY = y & 0xF;
         int localZ = z & 0xF;
+        int lastModCount = chunk.getModCount();
         chunk.set(localX, localY, localZ, state);
 
         this.generatedBounds = null;
+        this.heightmaps.onBlockChanged(x, y, z, state, this.bounds, chunk, lastModCount);
 
         if (state.hasBlockEntity()) {
             var nbt = new NbtCompound();
@@ -109,7 +179,7 @@ public final class MapTemplate {
     }
 
     public BlockState getBlockState(int x, int y, int z) {
-        MapChunk chunk = chunks.get(chunkPos(x, y, z));
+        MapChunk chunk = getChunk(chunkPos(x >> 4, y >> 4, z >> 4));
         if (chunk == null) return AIR;
         return chunk.get(x & 0xF, y & 0xF, z & 0xF);
     }
@@ -128,7 +198,7 @@ public final class MapTemplate {
     
     @Nullable
     public NbtCompound setBlockEntityNbt(int x, int y, int z, @Nullable NbtCompound nbt) {
-        MapChunk chunk = this.getOrCreateChunk(chunkPos(x, y, z));
+        MapChunk chunk = this.ownChunk(chunkPos(x >> 4, y >> 4, z >> 4));
 
         int localX = x & 0xF;
         int localY = y & 0xF;
@@ -143,7 +213,7 @@ public final class MapTemplate {
 
     @Nullable
     public NbtCompound getBlockEntityNbt(int x, int y, int z) {
-        MapChunk chunk = chunks.get(chunkPos(x, y, z));
+        MapChunk chunk = getChunk(chunkPos(x >> 4, y >> 4, z >> 4));
         if (chunk == null) return null;
         return chunk.getBlockEntity(x & 0xF, y & 0xF, z & 0xF);
     }
@@ -182,6 +252,7 @@ public final class MapTemplate {
      * @return A stream of block entities with their global block positions.
      */
     public Stream<Map.Entry<BlockPos, NbtCompound>> streamBlockEntities() {
+        this.loadFully();
         return chunks.long2ObjectEntrySet().stream().flatMap(
             entry -> streamBlockEntities(entry.getValue())
         );
@@ -199,6 +270,7 @@ public final class MapTemplate {
 
     public void addEntity(MapEntity entity) {
         entities.add(entity);
+        entitiesBySection.computeIfAbsent(chunkPos(entity.position()), pos -> new ArrayList<>()).add(entity);
     }
 
     public final void addEntity(Entity entity, Vec3d pos) {
@@ -206,10 +278,108 @@ public final class MapTemplate {
         if (mapEntity != null) addEntity(mapEntity);
     }
 
+    /**
+     * Remove an entity from this template.
+     *
+     * @param entity The entity to remove.
+     * @return Whether the entity was in this template.
+     */
+    public boolean removeEntity(MapEntity entity) {
+        var iterator = entities.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == entity) {
+                iterator.remove();
+                unindexEntity(entity);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove every entity matching a predicate from this template.
+     *
+     * @param predicate Predicate selecting the entities to remove.
+     * @return Whether any entity was removed.
+     */
+    public boolean removeEntitiesIf(Predicate<? super MapEntity> predicate) {
+        return entities.removeIf(entity -> {
+            if (!predicate.test(entity)) return false;
+            unindexEntity(entity);
+            return true;
+        });
+    }
+
+    private void unindexEntity(MapEntity entity) {
+        long pos = chunkPos(entity.position());
+        List<MapEntity> section = entitiesBySection.get(pos);
+        if (section == null) return;
+
+        for (int i = 0; i < section.size(); i++) {
+            if (section.get(i) == entity) {
+                section.remove(i);
+                break;
+            }
+        }
+        if (section.isEmpty()) entitiesBySection.remove(pos);
+    }
+
+    /**
+     * Get all the entities in this template. Entities added to or removed from
+     * the returned collection are added to or removed from the template.
+     *
+     * @return A view of the entities.
+     */
     public Collection<MapEntity> getEntities() {
-        return entities;
+        return entityView;
     }
-    
+
+    /**
+     * Lets {@link #getEntities()} be modified without the section index falling
+     * out of sync.
+     */
+    private final class EntityView extends AbstractCollection<MapEntity> {
+        @Override
+        public Iterator<MapEntity> iterator() {
+            var iterator = entities.iterator();
+            return new Iterator<>() {
+                private MapEntity last;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public MapEntity next() {
+                    return last = iterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                    unindexEntity(last);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return entities.size();
+        }
+
+        @Override
+        public boolean add(MapEntity entity) {
+            addEntity(entity);
+            return true;
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super MapEntity> filter) {
+            return removeEntitiesIf(filter);
+        }
+    }
+
     /**
      * Returns a stream of serialized entities from a chunk.
      *
@@ -219,29 +389,98 @@ public final class MapTemplate {
      * @return The stream of entities.
      */
     public Stream<MapEntity> getEntitiesInChunk(int chunkX, int chunkY, int chunkZ) {
-        ChunkSectionPos chunkPos = ChunkSectionPos.from(chunkX, chunkY, chunkZ);
-        return entities.stream().filter(ent -> MapChunk.isInChunk(ent.position(), chunkPos));
+        List<MapEntity> entities = entitiesBySection.get(chunkPos(chunkX, chunkY, chunkZ));
+        return entities != null ? entities.stream() : Stream.empty();
+    }
+
+    /**
+     * Get the entities in every section touched by some bounds. Runs in time
+     * linear to the number of occupied sections rather than the size of the
+     * bounds.
+     *
+     * @param bounds Bounds to search.
+     * @return The entities in those sections.
+     */
+    List<MapEntity> getEntitiesInSections(BlockBounds bounds) {
+        int minX = bounds.min().getX() >> 4;
+        int minY = bounds.min().getY() >> 4;
+        int minZ = bounds.min().getZ() >> 4;
+        int maxX = bounds.max().getX() >> 4;
+        int maxY = bounds.max().getY() >> 4;
+        int maxZ = bounds.max().getZ() >> 4;
+
+        List<MapEntity> result = new ArrayList<>();
+        for (var entry : Long2ObjectMaps.fastIterable(entitiesBySection)) {
+            long pos = entry.getLongKey();
+            int x = ChunkSectionPos.unpackX(pos);
+            int y = ChunkSectionPos.unpackY(pos);
+            int z = ChunkSectionPos.unpackZ(pos);
+
+            if (x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ) {
+                result.addAll(entry.getValue());
+            }
+        }
+        return result;
     }
 
-    // TODO: store / lookup more efficiently?
+    /**
+     * Get the Y of the topmost block in a column that matches a heightmap, within
+     * the bounds of this template.
+     * <p>
+     * Heights are cached per chunk column, so only the first lookup in a chunk
+     * column scans it. Chunks modified directly, rather than through
+     * {@link #setBlockState}, have their column scanned again on the next lookup.
+     * Cached heights are only saved along with the template once
+     * {@link #computeHeightmaps} or {@link #setSaveHeightmaps} asks for it.
+     * <p>
+     * The cache is synchronized, so heights may be looked up from several threads
+     * at once as long as the template isn't being modified.
+     *
+     * @param x         Block X.
+     * @param z         Block Z.
+     * @param heightmap Heightmap to use.
+     * @return The Y value, or <code>0</code> if no block in the column matches.
+     */
     public int getTopY(int x, int z, Heightmap.Type heightmap) {
-        var predicate = heightmap.getBlockPredicate();
+        return this.heightmaps.getTopY(this, x, z, heightmap);
+    }
 
+    /**
+     * Compute the heights of every column of this template ahead of time, so
+     * that they're saved with it and {@link #getTopY} never has to scan. This
+     * turns on {@linkplain #setSaveHeightmaps saving heights}.
+     *
+     * @param types Heightmaps to compute.
+     */
+    public void computeHeightmaps(Heightmap.Type... types) {
+        this.saveHeightmaps = true;
         var bounds = this.getBounds();
-        int minY = bounds.min().getY();
-        int maxY = bounds.max().getY();
-
-        var mutablePos = new BlockPos.Mutable(x, 0, z);
-        for (int y = maxY; y >= minY; y--) {
-            mutablePos.setY(y);
-
-            BlockState state = this.getBlockState(mutablePos);
-            if (predicate.test(state)) {
-                return y;
+        for (Heightmap.Type type : types) {
+            for (int chunkX = bounds.min().getX() >> 4; chunkX <= bounds.max().getX() >> 4; chunkX++) {
+                for (int chunkZ = bounds.min().getZ() >> 4; chunkZ <= bounds.max().getZ() >> 4; chunkZ++) {
+                    this.heightmaps.getTopY(this, chunkX << 4, chunkZ << 4, type);
+                }
             }
         }
+    }
+
+    /**
+     * Set whether cached heights are saved along with this template. Saved
+     * heights spare {@link #getTopY} from scanning after the template is loaded,
+     * but add up to 256 values per chunk column and heightmap to the file.
+     * Templates loaded with saved heights keep saving them.
+     *
+     * @param saveHeightmaps Whether to save cached heights.
+     */
+    public void setSaveHeightmaps(boolean saveHeightmaps) {
+        this.saveHeightmaps = saveHeightmaps;
+    }
 
-        return 0;
+    /**
+     * @return Whether cached heights are saved along with this template.
+     */
+    public boolean savesHeightmaps() {
+        return this.saveHeightmaps;
     }
 
     public BlockPos getTopPos(int x, int z, Heightmap.Type heightmap) {
@@ -253,12 +492,65 @@ public final class MapTemplate {
         return this.getBlockState(pos) != AIR;
     }
 
+    /**
+     * Get the chunk at a given position, creating it if it doesn't exist. The
+     * returned chunk may be modified freely.
+     *
+     * @param pos Chunk section position.
+     * @return The chunk.
+     */
     @NotNull
     public MapChunk getOrCreateChunk(long pos) {
-        return this.chunks.computeIfAbsent(pos, p -> new MapChunk(ChunkSectionPos.from(p)));
+        return this.ownChunk(pos);
+    }
+
+    private MapChunk ownChunk(long pos) {
+        var chunk = this.chunks.get(pos);
+        if (chunk != null) return chunk;
+
+        // Take ownership of lazily loaded chunks before they're modified.
+        var source = this.chunkSource;
+        if (source != null) chunk = this.takeChunk(source, pos);
+        if (chunk == null) chunk = new MapChunk(ChunkSectionPos.from(pos));
+
+        this.chunks.put(pos, chunk);
+        this.heightmaps.onChunkOwned(chunk);
+        return chunk;
+    }
+
+    @Nullable
+    private MapChunk takeChunk(MapChunkSource source, long pos) {
+        var chunk = source.get(pos);
+        if (chunk == null || !this.chunkSourceShared) return chunk;
+
+        // Snapshots may still read the chunk from the source. The copy holds the
+        // same data, so it's only as dirty as the chunk it was copied from.
+        var copy = chunk.copy();
+        if (!chunk.isDirty()) copy.markClean();
+        return copy;
+    }
+
+    /**
+     * Capture the chunks of this template as they are now. Chunks are copied
+     * without copying their blocks, which stay shared until either side modifies
+     * them. Chunks that haven't been loaded yet are read from the same source,
+     * so views of a lazily opened template stop working once it's closed.
+     *
+     * @return A chunk source with the current chunks of this template.
+     */
+    MapChunkSource snapshotChunks() {
+        var snapshot = new Long2ObjectOpenHashMap<MapChunk>(this.chunks.size());
+        for (var entry : Long2ObjectMaps.fastIterable(this.chunks)) {
+            snapshot.put(entry.getLongKey(), entry.getValue().copy());
+        }
+
+        var source = this.chunkSource;
+        if (source != null) this.chunkSourceShared = true;
+        return new SnapshotChunkSource(snapshot, source);
     }
 
     protected MapChunk putChunk(long pos, MapChunk chunk) {
+        this.heightmaps.invalidateChunk(ChunkSectionPos.unpackX(pos), ChunkSectionPos.unpackZ(pos));
         return this.chunks.put(pos, chunk);
     }
 
@@ -267,13 +559,88 @@ public final class MapTemplate {
     }
     
 
+    /**
+     * Get the chunk at a given position.
+     * <p>
+     * If this template was opened lazily, the chunk may be loaded on demand and
+     * must not be modified directly; use {@link #getOrCreateChunk} for that.
+     *
+     * @param pos Chunk section position.
+     * @return The chunk, or <code>null</code> if there is no chunk there.
+     */
     @Nullable
     public MapChunk getChunk(long pos) {
-        return this.chunks.get(pos);
+        var chunk = this.chunks.get(pos);
+        if (chunk == null) {
+            var source = this.chunkSource;
+            if (source != null) {
+                chunk = source.get(pos);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Load every chunk of a lazily opened template into memory and release the
+     * file backing it. Does nothing if the template is already in memory.
+     */
+    public void loadFully() {
+        var source = this.chunkSource;
+        if (source == null) return;
+
+        var iterator = source.getPositions().iterator();
+        while (iterator.hasNext()) {
+            long pos = iterator.nextLong();
+            if (!this.chunks.containsKey(pos)) {
+                var chunk = this.takeChunk(source, pos);
+                if (chunk != null) {
+                    this.chunks.put(pos, chunk);
+                    this.heightmaps.onChunkOwned(chunk);
+                }
+            }
+        }
+
+        this.close();
+    }
+
+    /**
+     * Release the file backing a lazily opened template. Chunks that haven't
+     * been loaded yet are dropped from the template. Does nothing if the
+     * template is already in memory.
+     */
+    public void close() {
+        var source = this.chunkSource;
+        if (source == null) return;
+
+        this.chunkSource = null;
+        try {
+            source.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Make chunks with identical blocks share a single block container. Shared
+     * containers are copied again as soon as one of the chunks is modified, so
+     * this only changes memory usage. Templates built from repeated pieces
+     * benefit the most.
+     * <p>
+     * Loading a template already does this, so it's mostly useful after building
+     * or editing one. Chunks of a lazily opened template that haven't been
+     * loaded are left alone.
+     *
+     * @return The number of distinct block containers left.
+     */
+    public int deduplicateSections() {
+        var pool = new SectionPool();
+        this.chunks.values().parallelStream().forEach(chunk -> chunk.intern(pool));
+        return pool.size();
     }
 
     public void setBounds(BlockBounds bounds) {
         this.bounds = bounds;
+        this.heightmaps.clear();
         this.generatedBounds = null;
     }
 
@@ -305,19 +672,22 @@ public final class MapTemplate {
         int maxChunkY = Integer.MIN_VALUE;
         int maxChunkZ = Integer.MIN_VALUE;
 
-        for (var entry : Long2ObjectMaps.fastIterable(this.chunks)) {
-            long chunkPos = entry.getLongKey();
-            int chunkX = ChunkSectionPos.unpackX(chunkPos);
-            int chunkY = ChunkSectionPos.unpackY(chunkPos);
-            int chunkZ = ChunkSectionPos.unpackZ(chunkPos);
-
-            if (chunkX < minChunkX) minChunkX = chunkX;
-            if (chunkY < minChunkY) minChunkY = chunkY;
-            if (chunkZ < minChunkZ) minChunkZ = chunkZ;
-
-            if (chunkX > maxChunkX) maxChunkX = chunkX;
-            if (chunkY > maxChunkY) maxChunkY = chunkY;
-            if (chunkZ > maxChunkZ) maxChunkZ = chunkZ;
+        for (LongIterable positions : this.getChunkPositions()) {
+            var iterator = positions.iterator();
+            while (iterator.hasNext()) {
+                long chunkPos = iterator.nextLong();
+                int chunkX = ChunkSectionPos.unpackX(chunkPos);
+                int chunkY = ChunkSectionPos.unpackY(chunkPos);
+                int chunkZ = ChunkSectionPos.unpackZ(chunkPos);
+
+                if (chunkX < minChunkX) minChunkX = chunkX;
+                if (chunkY < minChunkY) minChunkY = chunkY;
+                if (chunkZ < minChunkZ) minChunkZ = chunkZ;
+
+                if (chunkX > maxChunkX) maxChunkX = chunkX;
+                if (chunkY > maxChunkY) maxChunkY = chunkY;
+                if (chunkZ > maxChunkZ) maxChunkZ = chunkZ;
+            }
         }
 
         return BlockBounds.of(
@@ -326,6 +696,29 @@ public final class MapTemplate {
         );
     }
 
+    /**
+     * Get the positions of every chunk in this template, including chunks that
+     * haven't been loaded yet. Positions may be visited twice when the chunk
+     * source is consulted.
+     */
+    LongIterable[] getChunkPositions() {
+        var source = this.chunkSource;
+        return source != null
+                ? new LongIterable[] { this.chunks.keySet(), source.getPositions() }
+                : new LongIterable[] { this.chunks.keySet() };
+    }
+
+    /**
+     * @return Whether this template has any chunks, including chunks that haven't
+     *         been loaded yet.
+     */
+    boolean hasChunks() {
+        for (LongIterable positions : this.getChunkPositions()) {
+            if (positions.iterator().hasNext()) return true;
+        }
+        return false;
+    }
+
     static long chunkPos(Vec3i pos) {
         return chunkPos(pos.getX() >> 4, pos.getY() >> 4, pos.getZ() >> 4);
     }
@@ -338,12 +731,87 @@ public final class MapTemplate {
         return ChunkSectionPos.asLong(x, y, z);
     }
 
+    /**
+     * Create a copy of this template moved by an offset. Offsets that are a
+     * multiple of 16 on every axis move whole chunks, which share their blocks
+     * with this template until either is modified.
+     *
+     * @param x X offset.
+     * @param y Y offset.
+     * @param z Z offset.
+     * @return The translated template.
+     */
     public MapTemplate translated(int x, int y, int z) {
-        return this.transformed(MapTransform.translation(x, y, z));
+        var result = this.translatedView(x, y, z);
+        result.loadFully();
+        return result;
     }
 
+    /**
+     * Create a view of this template moved by an offset. Unlike
+     * {@link #translated}, chunks are only moved once they're accessed, so a
+     * template that's moved to be placed once never needs a full copy.
+     * <p>
+     * The view keeps the blocks this template has when it's created, sharing
+     * them until either template modifies them. If this template was opened
+     * lazily, chunks it hasn't loaded yet are read from its file, so
+     * {@link #loadFully() load the view fully} before closing or fully loading
+     * this template. Modifying the view is fine; modified chunks are copied
+     * into it.
+     *
+     * @param x X offset.
+     * @param y Y offset.
+     * @param z Z offset.
+     * @return The translated view.
+     */
+    public MapTemplate translatedView(int x, int y, int z) {
+        var result = MapTemplate.createEmpty();
+        result.chunkSource = TransformedChunkSource.translation(this, x, y, z);
+        this.transformDataInto(result, MapTransform.translation(x, y, z));
+        return result;
+    }
+
+    /**
+     * Create a rotated and mirrored copy of this template. Positions are mirrored
+     * first and then rotated around the pivot, like structures are.
+     * <p>
+     * Rotations and mirrors only ever swap and flip the horizontal axes, so each
+     * chunk is gathered from the (up to four) chunks it overlaps, and each
+     * distinct block state is only transformed once.
+     *
+     * @param pivot    Position to rotate around.
+     * @param rotation Rotation to apply.
+     * @param mirror   Mirror to apply.
+     * @return The transformed template.
+     */
     public MapTemplate rotateAround(BlockPos pivot, BlockRotation rotation, BlockMirror mirror) {
-        return this.transformed(MapTransform.rotationAround(pivot, rotation, mirror));
+        var result = this.rotatedView(pivot, rotation, mirror);
+        result.loadFully();
+        return result;
+    }
+
+    /**
+     * Create a rotated and mirrored view of this template. Unlike
+     * {@link #rotateAround}, chunks are only transformed once they're accessed.
+     * <p>
+     * The view keeps the blocks this template has when it's created, sharing
+     * them until either template modifies them. If this template was opened
+     * lazily, chunks it hasn't loaded yet are read from its file, so
+     * {@link #loadFully() load the view fully} before closing or fully loading
+     * this template. Modifying the view is fine; modified chunks are copied
+     * into it.
+     *
+     * @param pivot    Position to rotate around.
+     * @param rotation Rotation to apply.
+     * @param mirror   Mirror to apply.
+     * @return The transformed view.
+     */
+    public MapTemplate rotatedView(BlockPos pivot, BlockRotation rotation, BlockMirror mirror) {
+        var transform = MapTransform.rotationAround(pivot, rotation, mirror);
+        var result = MapTemplate.createEmpty();
+        result.chunkSource = TransformedChunkSource.rotation(this, transform);
+        this.transformDataInto(result, transform);
+        return result;
     }
 
     public MapTemplate rotate(BlockRotation rotation, BlockMirror mirror) {
@@ -359,6 +827,7 @@ public final class MapTemplate {
     }
 
     public MapTemplate transformed(MapTransform transform) {
+        this.loadFully();
         var result = MapTemplate.createEmpty();
 
         var mutablePos = new BlockPos.Mutable();
@@ -393,10 +862,6 @@ public final class MapTemplate {
             result.setBlockEntityNbt(mutablePos, entry.getValue());
         }
 
-        for (MapEntity entity : entities) {
-            result.addEntity(entity.transformed(transform));
-        }
-
         // for (var blockEntity : Long2ObjectMaps.fastIterable(this.blockEntities)) {
         //     mutablePos.set(blockEntity.getLongKey());
         //     transform.transformPoint(mutablePos);
@@ -405,19 +870,30 @@ public final class MapTemplate {
         //     result.setBlockEntityNbt(mutablePos, nbt);
         // }
 
+        this.transformDataInto(result, transform);
+        return result;
+    }
+
+    /**
+     * Copy everything except blocks and block entities into a transformed
+     * template.
+     */
+    private void transformDataInto(MapTemplate result, MapTransform transform) {
+        for (MapEntity entity : entities) {
+            result.addEntity(entity.transformed(transform));
+        }
+
         result.biome = this.biome;
 
         result.metadata.data = this.metadata.data.copy();
 
         for (var sourceRegion : this.metadata.regions) {
-            result.metadata.regions.add(new TemplateRegion(
+            result.metadata.addRegion(new TemplateRegion(
                     sourceRegion.getMarker(),
                     transform.transformedBounds(sourceRegion.getBounds()),
                     sourceRegion.getData().copy()
             ));
         }
-
-        return result;
     }
 
     /**
@@ -439,27 +915,49 @@ public final class MapTemplate {
         other.mergeInto(this);
     }
 
+    private static void mergeBlocks(MapChunk chunk, MapChunk otherChunk) {
+        for (int chunkY = 0; chunkY < 16; chunkY++) {
+            for (int chunkZ = 0; chunkZ < 16; chunkZ++) {
+                for (int chunkX = 0; chunkX < 16; chunkX++) {
+                    var state = chunk.get(chunkX, chunkY, chunkZ);
+                    if (!state.isAir()) {
+                        otherChunk.set(chunkX, chunkY, chunkZ, state);
+                    }
+                }
+            }
+        }
+    }
+
     public void mergeInto(MapTemplate other) {
+        this.loadFully();
         for (var entry : Long2ObjectMaps.fastIterable(this.chunks)) {
             long chunkPos = entry.getLongKey();
             var chunk = entry.getValue();
+
+            // Nothing to merge into, so the whole chunk can be copied.
+            if (other.getChunk(chunkPos) == null) {
+                other.putChunk(chunkPos, chunk.copy());
+                continue;
+            }
+
             var otherChunk = other.getOrCreateChunk(chunkPos);
 
-            for (int chunkZ = 0; chunkZ < 16; chunkZ++) {
-                for (int chunkY = 0; chunkY < 16; chunkY++) {
-                    for (int chunkX = 0; chunkX < 16; chunkX++) {
-                        var state = chunk.get(chunkX, chunkY, chunkZ);
-                        if (!state.isAir()) {
-                            otherChunk.set(chunkX, chunkY, chunkZ, state);
-                        }
-                    }
+            // Air never overrides anything, so empty chunks only contribute block entities.
+            if (!chunk.isEmpty()) {
+                if (otherChunk.isEmpty() || chunk.isFull()) {
+                    otherChunk.copyBlocksFrom(chunk);
+                } else {
+                    mergeBlocks(chunk, otherChunk);
                 }
             }
 
-            for (var entEntry : chunk.getBlockEntities().long2ObjectEntrySet()) {
-                otherChunk.getBlockEntities().put(entEntry.getLongKey(), entEntry.getValue().copy());
+            if (!chunk.getBlockEntities().isEmpty()) {
+                for (var entEntry : chunk.getBlockEntities().long2ObjectEntrySet()) {
+                    otherChunk.getBlockEntities().put(entEntry.getLongKey(), entEntry.getValue().copy());
+                }
+                // Block entities can change even when none of the blocks do.
+                otherChunk.markDirty();
             }
-
         }
 
         for (MapEntity entity : this.entities) {
@@ -0,0 +1,233 @@
+package net.betrayd.map_templates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.jetbrains.annotations.Nullable;
+
+import net.minecraft.resource.ResourceManager;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.Identifier;
+
+/**
+ * A size-weighted LRU cache of templates loaded from resources.
+ * <p>
+ * Cached templates are never handed out directly; every lookup returns a
+ * {@link MapTemplate#copy() copy}, so callers are free to modify what they get.
+ * The cache is dropped whenever the server's resource manager changes, which
+ * happens on every resource reload.
+ *
+ * @see MapTemplateSerializer#getCache()
+ */
+public final class MapTemplateCache {
+    private final LinkedHashMap<Identifier, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private ResourceManager resourceManager;
+    private long maxBytes;
+    private long totalBytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private record Entry(MapTemplate template, long size) {
+    }
+
+    public MapTemplateCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get a template from the cache, loading it from the server's resources if
+     * it isn't present.
+     *
+     * @param server     Server to load resources from.
+     * @param identifier Template identifier.
+     * @return A private copy of the template.
+     * @throws IOException If the template could not be loaded.
+     */
+    public MapTemplate get(MinecraftServer server, Identifier identifier) throws IOException {
+        var resourceManager = server.getResourceManager();
+
+        var cached = this.lookup(resourceManager, identifier);
+        if (cached != null) {
+            return cached.copy();
+        }
+
+        MapTemplate template;
+        try (var input = MapTemplateSerializer.openResource(resourceManager, identifier)) {
+            template = MapTemplateSerializer.loadResource(identifier, input);
+        }
+
+        return this.store(resourceManager, identifier, template) ? template.copy() : template;
+    }
+
+    /**
+     * Get a template from the cache, loading it from the server's resources if
+     * it isn't present. The resource is looked up on the calling thread, while
+     * decoding and copying happen on the executor.
+     *
+     * @param server     Server to load resources from.
+     * @param identifier Template identifier.
+     * @param executor   Executor to load the template on.
+     * @return A future with a private copy of the template.
+     */
+    public CompletableFuture<MapTemplate> getAsync(MinecraftServer server, Identifier identifier, Executor executor) {
+        var resourceManager = server.getResourceManager();
+
+        var cached = this.lookup(resourceManager, identifier);
+        if (cached != null) {
+            return CompletableFuture.supplyAsync(cached::copy, executor);
+        }
+
+        InputStream input;
+        try {
+            input = MapTemplateSerializer.openResource(resourceManager, identifier);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            MapTemplate template;
+            try (input) {
+                template = MapTemplateSerializer.loadResource(identifier, input);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+
+            return this.store(resourceManager, identifier, template) ? template.copy() : template;
+        }, executor);
+    }
+
+    @Nullable
+    private synchronized MapTemplate lookup(ResourceManager resourceManager, Identifier identifier) {
+        if (this.resourceManager != resourceManager) {
+            this.clear();
+            this.resourceManager = resourceManager;
+        }
+
+        var entry = this.entries.get(identifier);
+        if (entry != null) {
+            this.hits++;
+            return entry.template();
+        }
+
+        this.misses++;
+        return null;
+    }
+
+    /**
+     * Insert a freshly loaded template. Once stored, the template must not be
+     * modified or handed out.
+     *
+     * @return Whether the template was stored.
+     */
+    private synchronized boolean store(ResourceManager resourceManager, Identifier identifier, MapTemplate template) {
+        long size = estimateSize(template);
+
+        // Either a reload happened while loading or the template would never fit.
+        if (this.resourceManager != resourceManager || size > this.maxBytes) {
+            return false;
+        }
+
+        var previous = this.entries.put(identifier, new Entry(template, size));
+        if (previous != null) {
+            this.totalBytes -= previous.size();
+        }
+        this.totalBytes += size;
+        this.evict();
+
+        return this.entries.containsKey(identifier);
+    }
+
+    /**
+     * Remove a single template from the cache.
+     *
+     * @param identifier Template identifier.
+     */
+    public synchronized void invalidate(Identifier identifier) {
+        var entry = this.entries.remove(identifier);
+        if (entry != null) {
+            this.totalBytes -= entry.size();
+        }
+    }
+
+    /**
+     * Remove every template from the cache. Statistics are kept.
+     */
+    public synchronized void clear() {
+        this.entries.clear();
+        this.totalBytes = 0;
+    }
+
+    /**
+     * Set the memory budget of this cache. Setting it to <code>0</code>
+     * effectively disables caching.
+     *
+     * @param maxBytes Approximate maximum heap usage of cached templates, in
+     *                 bytes.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.evict();
+    }
+
+    public synchronized long getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return The approximate heap usage of cached templates, in bytes.
+     */
+    public synchronized long getSizeBytes() {
+        return this.totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return this.entries.size();
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Identifier, Entry>> iterator = this.entries.entrySet().iterator();
+        while (this.totalBytes > this.maxBytes && iterator.hasNext()) {
+            this.totalBytes -= iterator.next().getValue().size();
+            iterator.remove();
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Roughly estimate the heap footprint of a template. This only needs to be
+     * good enough to weigh templates against each other.
+     */
+    static long estimateSize(MapTemplate template) {
+        long size = 0;
+        for (MapChunk chunk : template.chunks.values()) {
+            size += chunk.estimateSize();
+        }
+
+        for (MapEntity entity : template.entities) {
+            size += entity.nbt().getSizeInBytes();
+        }
+
+        return size + template.metadata.data.getSizeInBytes();
+    }
+}
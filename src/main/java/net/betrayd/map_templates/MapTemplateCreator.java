@@ -11,13 +11,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import net.minecraft.entity.Entity;
+import net.minecraft.entity.boss.dragon.EnderDragonPart;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Util;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Box;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.util.math.Vec3d;
 import net.minecraft.world.World;
 import net.minecraft.world.chunk.Chunk;
 import net.minecraft.world.chunk.ChunkSection;
@@ -28,6 +31,7 @@ import net.minecraft.world.chunk.ChunkSection;
 public class MapTemplateCreator {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MapTemplateCreator.class);
+    private static final double ENTITY_BOX_MARGIN = 1.0E-7;
 
     // public MapTemplate compileWorld(World world, ChunkSectionPos bounds1, ChunkSectionPos bounds2, @Nullable Predicate<Entity> entityPredicate) {
     //     if (entityPredicate != null) {
@@ -53,6 +57,10 @@ public class MapTemplateCreator {
     
     /**
      * Compile a section of a world into a map template.
+     * <p>
+     * Must be called on the server thread. Entities are looked up and saved
+     * before this returns, and the rest of each chunk is exported on the
+     * executor.
      * 
      * @param world           World to compile.
      * @param bounds1         One corner of the bounding box to compile.
@@ -77,19 +85,20 @@ public class MapTemplateCreator {
         BlockPos maxBlockPos = new BlockPos(maxPos.getMaxX(), maxPos.getMaxY(), maxPos.getMaxZ());
 
         MapTemplate template = MapTemplate.createEmpty();
-
-        if (entityPredicate != null && world instanceof ServerWorld serverWorld) {
-            entityPredicate = entityPredicate.and(ent -> !(ent instanceof PlayerEntity));
-
-            for (Entity ent : serverWorld.iterateEntities()) {
-                if (entityPredicate.test(ent) && blockBoundsContains(minBlockPos, maxBlockPos, ent.getBlockPos())) {
-                    template.addEntity(ent, ent.getPos());
-                }
-            }
+        // Empty sections aren't stored, so the bounds can't be worked out from the chunks.
+        template.setBounds(BlockBounds.of(minBlockPos, maxBlockPos));
+        var metrics = TemplateMetrics.start(TemplateMetrics.Operation.EXPORT);
+
+        Predicate<Entity> capturedEntities = null;
+        if (entityPredicate != null && world instanceof ServerWorld) {
+            capturedEntities = entityPredicate.and(ent -> !(ent instanceof PlayerEntity)
+                    && blockBoundsContains(minBlockPos, maxBlockPos, ent.getBlockPos()));
         }
 
         int expectedSize = (maxPos.getX() + 1 - minPos.getX()) * (maxPos.getZ() + 1 - minPos.getZ());        
         List<CompletableFuture<?>> futures = new ArrayList<>(expectedSize);
+        // Repeated sections like solid fill or flat floors end up sharing a container.
+        SectionPool sections = new SectionPool();
 
         for (int x = minPos.getX(); x <= maxPos.getX(); x++) {
             for (int z = minPos.getZ(); z <= maxPos.getZ(); z++) {
@@ -97,22 +106,89 @@ public class MapTemplateCreator {
                 if (chunk == null) continue;
 
                 ChunkPos chunkPos = new ChunkPos(x, z);
-                futures.add(CompletableFuture.supplyAsync(() -> compileChunk(chunk, chunkPos, minPos.getY(), maxPos.getY()), executor).thenAccept(array -> {
-                    
+                List<SavedEntity> entities = capturedEntities != null
+                        ? saveEntities(world, chunkPos, minBlockPos, maxBlockPos, capturedEntities, metrics)
+                        : List.of();
+
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    long entityStart = metrics.time();
+                    List<MapEntity> mapEntities = new ArrayList<>(entities.size());
+                    for (SavedEntity entity : entities) {
+                        mapEntities.add(MapEntity.fromSavedEntity(entity.nbt(), entity.blockPos(), entity.pos()));
+                    }
+                    metrics.record(TemplateMetrics.Phase.CAPTURE_ENTITIES, entityStart);
+                    metrics.addEntities(mapEntities.size());
+
+                    long start = metrics.time();
+                    MapChunk[] array = compileChunk(chunk, chunkPos, minPos.getY(), maxPos.getY());
                     for (MapChunk c : array) {
-                        if (c != null)
-                            putChunkInTemplate(template, c);
+                        if (c != null) {
+                            c.intern(sections);
+                            metrics.addSections(1);
+                            metrics.addBlockEntities(c.getBlockEntities().size());
+                        }
                     }
-                }));
+                    metrics.record(TemplateMetrics.Phase.CAPTURE_BLOCKS, start);
+
+                    addChunkToTemplate(template, array, mapEntities);
+                    return null;
+                }, executor));
             }
         }
 
-        return CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).thenApply(v -> template);
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).thenApply(v -> {
+            metrics.finish();
+            return template;
+        });
     }
 
     // Synchronized wrapper in dedicated function; I don't know how it will play with lambdas.
-    private static synchronized void putChunkInTemplate(MapTemplate template, MapChunk chunk) {
-        template.putChunk(chunk);
+    private static synchronized void addChunkToTemplate(MapTemplate template, MapChunk[] chunks,
+            List<MapEntity> entities) {
+        for (MapChunk chunk : chunks) {
+            if (chunk != null)
+                template.putChunk(chunk);
+        }
+        for (MapEntity entity : entities) {
+            template.addEntity(entity);
+        }
+    }
+
+    /**
+     * An entity that has been saved on the server thread, to be turned into a
+     * map entity on a worker thread.
+     */
+    private record SavedEntity(NbtCompound nbt, BlockPos blockPos, Vec3d pos) {
+    }
+
+    /**
+     * Save the entities standing in a chunk column within the bounds. Only the
+     * world's entity sections that intersect the column are searched. Entities
+     * can only be accessed on the server thread, so this can't be done by the
+     * chunk's task.
+     */
+    private static List<SavedEntity> saveEntities(World world, ChunkPos chunkPos, BlockPos minBlockPos,
+            BlockPos maxBlockPos, Predicate<Entity> predicate, TemplateMetrics metrics) {
+        long start = metrics.time();
+        // Lookups only return entities strictly intersecting the box, which would miss zero-size entities on its edges.
+        var box = new Box(chunkPos.getStartX(), minBlockPos.getY(), chunkPos.getStartZ(),
+                chunkPos.getEndX() + 1, maxBlockPos.getY() + 1, chunkPos.getEndZ() + 1).expand(ENTITY_BOX_MARGIN);
+
+        // Entities overlapping several columns are only captured by the one they stand in. Dragon parts are
+        // returned as entities of their own, but are saved with the dragon.
+        Predicate<Entity> inColumn = ent -> !(ent instanceof EnderDragonPart) && chunkPos.equals(ent.getChunkPos())
+                && predicate.test(ent);
+
+        List<SavedEntity> entities = new ArrayList<>();
+        for (Entity ent : world.getOtherEntities(null, box, inColumn)) {
+            var nbt = new NbtCompound();
+            if (ent.saveNbt(nbt)) {
+                entities.add(new SavedEntity(nbt, ent.getBlockPos(), ent.getPos()));
+            }
+        }
+
+        metrics.record(TemplateMetrics.Phase.CAPTURE_ENTITIES, start);
+        return entities;
     }
 
     /**
@@ -131,7 +207,8 @@ public class MapTemplateCreator {
         int y;
         for (int i = 0; i < sections.length; i++) {
             y = chunk.sectionIndexToCoord(i);
-            if (minY <= y && y <= maxY)
+            // Sections of plain air can't hold block entities either, so there's nothing to keep.
+            if (minY <= y && y <= maxY && MapChunk.hasBlocks(sections[i]))
                 chunks[i] = MapChunk.loadFrom(ChunkSectionPos.from(chunkPos, y), sections[i]);
         }
 
@@ -1,11 +1,18 @@
 package net.betrayd.map_templates;
 
 import net.minecraft.nbt.NbtCompound;
+import net.minecraft.util.math.BlockPos;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.AbstractCollection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 
 /**
@@ -18,6 +25,20 @@ public final class MapTemplateMetadata {
     final List<TemplateRegion> regions = new ArrayList<>();
     NbtCompound data = new NbtCompound();
 
+    private final Map<String, List<TemplateRegion>> regionsByMarker = new HashMap<>();
+    /**
+     * Spatial index of {@link #regions}, built on the first spatial query after
+     * regions change.
+     */
+    @Nullable
+    private RegionTree regionTree;
+    /**
+     * Spatial indices of the regions with each marker, built like
+     * {@link #regionTree}.
+     */
+    private final Map<String, RegionTree> markerTrees = new HashMap<>();
+    private final Collection<TemplateRegion> regionView = new RegionView();
+
     /**
      * Adds a region with the given marker tag and bounds.
      * Note that markers are not unique: multiple regions can be assigned the same marker!
@@ -41,12 +62,63 @@ public final class MapTemplateMetadata {
      */
     public TemplateRegion addRegion(String marker, BlockBounds bounds, NbtCompound nbt) {
         TemplateRegion region = new TemplateRegion(marker, bounds, nbt);
-        this.regions.add(region);
+        this.addRegion(region);
         return region;
     }
 
     public void addRegion(TemplateRegion region) {
         this.regions.add(region);
+        this.regionsByMarker.computeIfAbsent(region.getMarker(), m -> new ArrayList<>()).add(region);
+        this.regionTree = null;
+        this.markerTrees.remove(region.getMarker());
+    }
+
+    /**
+     * Removes a region from this map.
+     *
+     * @param region the region to remove
+     * @return whether the region was in this map
+     */
+    public boolean removeRegion(TemplateRegion region) {
+        var iterator = this.regions.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == region) {
+                iterator.remove();
+                this.unindexRegion(region);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every region matching a predicate from this map.
+     *
+     * @param predicate the predicate selecting the regions to remove
+     * @return whether any region was removed
+     */
+    public boolean removeRegionsIf(Predicate<? super TemplateRegion> predicate) {
+        return this.regions.removeIf(region -> {
+            if (!predicate.test(region)) return false;
+            this.unindexRegion(region);
+            return true;
+        });
+    }
+
+    private void unindexRegion(TemplateRegion region) {
+        var markerRegions = this.regionsByMarker.get(region.getMarker());
+        if (markerRegions != null) {
+            for (int i = 0; i < markerRegions.size(); i++) {
+                if (markerRegions.get(i) == region) {
+                    markerRegions.remove(i);
+                    break;
+                }
+            }
+            if (markerRegions.isEmpty()) this.regionsByMarker.remove(region.getMarker());
+        }
+
+        this.regionTree = null;
+        this.markerTrees.remove(region.getMarker());
     }
 
     /**
@@ -56,8 +128,89 @@ public final class MapTemplateMetadata {
      * @return a stream of regions that match the query
      */
     public Stream<TemplateRegion> getRegions(String marker) {
-        return this.regions.stream()
-                .filter(region -> region.getMarker().equals(marker));
+        var regions = this.regionsByMarker.get(marker);
+        return regions != null ? regions.stream() : Stream.empty();
+    }
+
+    /**
+     * Queries all regions within this map that contain the given position.
+     *
+     * @param pos the position to query for
+     * @return a list of regions that contain the position
+     */
+    public List<TemplateRegion> getRegionsAt(BlockPos pos) {
+        List<TemplateRegion> result = new ArrayList<>();
+        this.getRegionTree().forEachAt(pos.getX(), pos.getY(), pos.getZ(), result::add);
+        return result;
+    }
+
+    /**
+     * Queries all regions within this map that match the given marker and contain the given position.
+     *
+     * @param marker the marker to query for
+     * @param pos the position to query for
+     * @return a list of regions that match the query
+     */
+    public List<TemplateRegion> getRegionsAt(String marker, BlockPos pos) {
+        List<TemplateRegion> result = new ArrayList<>();
+        var tree = this.getRegionTree(marker);
+        if (tree != null) tree.forEachAt(pos.getX(), pos.getY(), pos.getZ(), result::add);
+        return result;
+    }
+
+    /**
+     * Queries all regions within this map that intersect the given bounds.
+     *
+     * @param bounds the bounds to query for
+     * @return a list of regions that intersect the bounds
+     */
+    public List<TemplateRegion> getRegionsIntersecting(BlockBounds bounds) {
+        List<TemplateRegion> result = new ArrayList<>();
+        this.forEachIntersecting(bounds, result::add);
+        return result;
+    }
+
+    /**
+     * Queries all regions within this map that match the given marker and intersect the given bounds.
+     *
+     * @param marker the marker to query for
+     * @param bounds the bounds to query for
+     * @return a list of regions that match the query
+     */
+    public List<TemplateRegion> getRegionsIntersecting(String marker, BlockBounds bounds) {
+        List<TemplateRegion> result = new ArrayList<>();
+        var tree = this.getRegionTree(marker);
+        if (tree != null) forEachIntersecting(tree, bounds, result::add);
+        return result;
+    }
+
+    private void forEachIntersecting(BlockBounds bounds, Consumer<TemplateRegion> consumer) {
+        forEachIntersecting(this.getRegionTree(), bounds, consumer);
+    }
+
+    private static void forEachIntersecting(RegionTree tree, BlockBounds bounds, Consumer<TemplateRegion> consumer) {
+        var min = bounds.min();
+        var max = bounds.max();
+        tree.forEachIntersecting(min.getX(), min.getY(), min.getZ(), max.getX(), max.getY(), max.getZ(), consumer);
+    }
+
+    private RegionTree getRegionTree() {
+        var tree = this.regionTree;
+        if (tree == null) {
+            this.regionTree = tree = RegionTree.build(this.regions);
+        }
+        return tree;
+    }
+
+    /**
+     * @return The spatial index of the regions with a marker, or
+     *         <code>null</code> if there are none.
+     */
+    @Nullable
+    private RegionTree getRegionTree(String marker) {
+        var regions = this.regionsByMarker.get(marker);
+        if (regions == null) return null;
+        return this.markerTrees.computeIfAbsent(marker, m -> RegionTree.build(regions));
     }
 
     /**
@@ -95,8 +248,73 @@ public final class MapTemplateMetadata {
         return this.getRegionBounds(marker).findFirst().orElse(null);
     }
 
+    /**
+     * Gets all regions within this map. Regions added to or removed from the returned collection are added to or
+     * removed from this map.
+     *
+     * @return a view of the regions
+     */
     public Collection<TemplateRegion> getRegions() {
-        return this.regions;
+        return this.regionView;
+    }
+
+    /**
+     * Lets {@link #getRegions()} be modified without the indices falling out of sync.
+     */
+    private final class RegionView extends AbstractCollection<TemplateRegion> {
+        @Override
+        public Iterator<TemplateRegion> iterator() {
+            var iterator = MapTemplateMetadata.this.regions.iterator();
+            return new Iterator<>() {
+                private TemplateRegion last;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public TemplateRegion next() {
+                    return this.last = iterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    iterator.remove();
+                    MapTemplateMetadata.this.unindexRegion(this.last);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return MapTemplateMetadata.this.regions.size();
+        }
+
+        @Override
+        public boolean add(TemplateRegion region) {
+            MapTemplateMetadata.this.addRegion(region);
+            return true;
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super TemplateRegion> filter) {
+            return MapTemplateMetadata.this.removeRegionsIf(filter);
+        }
+    }
+
+    /**
+     * Creates a deep copy of this metadata, including all regions and their data.
+     *
+     * @return the copied metadata
+     */
+    public MapTemplateMetadata copy() {
+        var result = new MapTemplateMetadata();
+        for (var region : this.regions) {
+            result.addRegion(region.copy());
+        }
+        result.data = this.data.copy();
+        return result;
     }
 
     /**
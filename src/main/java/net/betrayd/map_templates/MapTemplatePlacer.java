@@ -1,21 +1,163 @@
 package net.betrayd.map_templates;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.jetbrains.annotations.Nullable;
+
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import net.minecraft.block.BlockState;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.Util;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.Heightmap;
 import net.minecraft.world.chunk.WorldChunk;
 
 public record MapTemplatePlacer(MapTemplate template) {
     public void placeAt(ServerWorld world, BlockPos origin) {
-        var chunkCache = this.collectChunks(world, origin, this.template.bounds);
+        var metrics = TemplateMetrics.start(TemplateMetrics.Operation.PLACE);
+        var chunkCache = this.collectChunks(world, origin, this.template.getBounds());
+
+        this.placeBlocks(origin, chunkCache, metrics);
+
+        long spawnStart = metrics.time();
+        metrics.addEntities(this.placeEntities(world, origin));
+        metrics.record(TemplateMetrics.Phase.SPAWN_ENTITIES, spawnStart);
+
+        metrics.finish();
+    }
+
+    /**
+     * Place the template a whole chunk section at a time. This is considerably
+     * faster than {@link #placeAt} for large templates, especially when the
+     * origin is aligned to the section grid.
+     * <p>
+     * Unlike {@link #placeAt}, block callbacks such as
+     * {@link BlockState#onBlockAdded} are not run, and heightmaps are rebuilt once
+     * per chunk instead of being updated for every block.
+     *
+     * @param world  World to place into.
+     * @param origin World position of the template origin.
+     */
+    public void placeSectionsAt(ServerWorld world, BlockPos origin) {
+        var job = this.placeIncrementally(world, origin, PlacementJob.Budget.UNLIMITED);
+        job.tick();
+        job.getFuture().join();
+    }
+
+    /**
+     * Start placing the template over several ticks. The returned job must be
+     * ticked by the caller; see {@link PlacementJob}.
+     *
+     * @param world  World to place into.
+     * @param origin World position of the template origin.
+     * @param budget How much work to do per tick.
+     * @return The placement job.
+     */
+    public PlacementJob placeIncrementally(ServerWorld world, BlockPos origin, PlacementJob.Budget budget) {
+        var template = this.template;
+        var bounds = template.getBounds();
+        var worldBounds = bounds.offset(origin);
 
-        this.placeBlocks(origin, chunkCache);
-        this.placeEntities(world, origin);
+        return new PlacementJob(world, worldBounds.asChunks().toLongArray(),
+                worldBounds.min().getY() >> 4, worldBounds.max().getY() >> 4,
+                (chunkX, sectionY, chunkZ) -> SectionPayload.create(template, bounds, origin,
+                        ChunkSectionPos.from(chunkX, sectionY, chunkZ)),
+                w -> this.placeEntities(w, origin), budget);
+    }
+
+    /**
+     * Do the data-heavy part of placement on worker threads, one task per world
+     * chunk. The result only needs to be swapped into the world on the server
+     * thread with {@link PreparedPlacement#applyTo} or
+     * {@link PreparedPlacement#applyIncrementally}.
+     * <p>
+     * The template must not be modified until the prepared placement has been
+     * applied, as the two may share block data.
+     *
+     * @param origin   World position of the template origin.
+     * @param executor An executor to prepare chunks on. If <code>null</code>,
+     *                 {@link Util#getMainWorkerExecutor()} is used.
+     * @return A future with the prepared placement.
+     */
+    public CompletableFuture<PreparedPlacement> prepare(BlockPos origin, @Nullable Executor executor) {
+        if (executor == null)
+                executor = Util.getMainWorkerExecutor();
+
+        var template = this.template;
+        var bounds = template.getBounds();
+        var worldBounds = bounds.offset(origin);
+
+        int minSectionY = worldBounds.min().getY() >> 4;
+        int maxSectionY = worldBounds.max().getY() >> 4;
+
+        var chunkPositions = worldBounds.asChunks();
+        List<CompletableFuture<List<SectionPayload>>> futures = new ArrayList<>(chunkPositions.size());
+
+        var chunkIterator = chunkPositions.iterator();
+        while (chunkIterator.hasNext()) {
+            long chunkPos = chunkIterator.nextLong();
+            int chunkX = ChunkPos.getPackedX(chunkPos);
+            int chunkZ = ChunkPos.getPackedZ(chunkPos);
+
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                List<SectionPayload> payloads = new ArrayList<>();
+                for (int sectionY = minSectionY; sectionY <= maxSectionY; sectionY++) {
+                    var payload = SectionPayload.create(template, bounds, origin, ChunkSectionPos.from(chunkX, sectionY, chunkZ));
+                    if (payload != null) payloads.add(payload);
+                }
+                return payloads;
+            }, executor));
+        }
+
+        var entities = CompletableFuture.supplyAsync(() -> template.getEntitiesInSections(bounds).stream()
+                .map(entity -> entity.createEntityNbt(origin))
+                .toList(), executor);
+
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture<?>[]::new)).thenCombine(entities, (v, entityNbt) -> {
+            Long2ObjectMap<SectionPayload> sections = new Long2ObjectOpenHashMap<>();
+            LongSet chunks = new LongOpenHashSet();
+
+            for (var future : futures) {
+                for (var payload : future.join()) {
+                    sections.put(payload.getPos().asLong(), payload);
+                    chunks.add(payload.getPos().toChunkPos().toLong());
+                }
+            }
+
+            return new PreparedPlacement(chunks.toLongArray(), minSectionY, maxSectionY, sections, entityNbt);
+        });
+    }
+
+    /**
+     * Bring a chunk's derived state back in line after its sections have been
+     * written directly.
+     */
+    static void finishChunk(WorldChunk chunk, LongList lightChecks) {
+        var heightmapTypes = EnumSet.noneOf(Heightmap.Type.class);
+        for (var entry : chunk.getHeightmaps()) {
+            heightmapTypes.add(entry.getKey());
+        }
+        Heightmap.populateHeightmaps(chunk, heightmapTypes);
+        chunk.refreshSurfaceY();
+
+        var lightingProvider = chunk.getWorld().getChunkManager().getLightingProvider();
+        var lightIterator = lightChecks.iterator();
+        while (lightIterator.hasNext()) {
+            lightingProvider.checkBlock(BlockPos.fromLong(lightIterator.nextLong()));
+        }
+
+        chunk.setNeedsSaving(true);
     }
 
     private Long2ObjectMap<WorldChunk> collectChunks(ServerWorld world, BlockPos origin, BlockBounds bounds) {
@@ -34,10 +176,13 @@ public record MapTemplatePlacer(MapTemplate template) {
         return chunks;
     }
 
-    private void placeBlocks(BlockPos origin, Long2ObjectMap<WorldChunk> chunkCache) {
+    private void placeBlocks(BlockPos origin, Long2ObjectMap<WorldChunk> chunkCache, TemplateMetrics metrics) {
         var template = this.template;
         var bounds = template.getBounds();
 
+        long start = metrics.time();
+        long blockEntityNanos = 0;
+
         BlockPos.Mutable worldPos = new BlockPos.Mutable();
 
         int originX = origin.getX();
@@ -60,29 +205,34 @@ public record MapTemplatePlacer(MapTemplate template) {
 
             NbtCompound blockEntity = template.getBlockEntityNbt(templatePos, worldPos);
             if (blockEntity != null) {
+                // The block entity is created from its pending NBT when the block is set.
+                long blockEntityStart = metrics.time();
                 chunk.addPendingBlockEntityNbt(blockEntity);
+                chunk.setBlockState(worldPos, state, false);
+
+                if (metrics.isEnabled()) blockEntityNanos += System.nanoTime() - blockEntityStart;
+                metrics.addBlockEntities(1);
+            } else {
+                chunk.setBlockState(worldPos, state, false);
             }
+        }
 
-            chunk.setBlockState(worldPos, state, false);
+        if (metrics.isEnabled()) {
+            metrics.add(TemplateMetrics.Phase.PLACE_BLOCKS, System.nanoTime() - start - blockEntityNanos);
+            metrics.add(TemplateMetrics.Phase.PLACE_BLOCK_ENTITIES, blockEntityNanos);
         }
     }
 
-    private void placeEntities(ServerWorld world, BlockPos origin) {
+    /**
+     * @return The number of template entities that were placed.
+     */
+    int placeEntities(ServerWorld world, BlockPos origin) {
         var template = this.template;
 
-        var chunks = template.getBounds().asChunkSections();
-        var chunkIterator = chunks.iterator();
-
-        while (chunkIterator.hasNext()) {
-            long chunkPos = chunkIterator.nextLong();
-            int chunkX = ChunkSectionPos.unpackX(chunkPos);
-            int chunkY = ChunkSectionPos.unpackY(chunkPos);
-            int chunkZ = ChunkSectionPos.unpackZ(chunkPos);
-
-            var entities = template.getEntitiesInChunk(chunkX, chunkY, chunkZ);
-            entities.forEach(mapEntity ->
-                    mapEntity.createEntities(world, origin, world::spawnEntity)
-            );
+        var entities = template.getEntitiesInSections(template.getBounds());
+        for (MapEntity mapEntity : entities) {
+            mapEntity.createEntities(world, origin, world::spawnEntity);
         }
+        return entities.size();
     }
 }
@@ -1,64 +1,436 @@
 package net.betrayd.map_templates;
 
 import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import com.mojang.datafixers.DataFixer;
 import com.mojang.datafixers.DSL.TypeReference;
 import com.mojang.serialization.Dynamic;
-import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
 import net.fabricmc.loader.api.FabricLoader;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.minecraft.SharedConstants;
+import net.minecraft.block.BlockState;
 import net.minecraft.datafixer.Schemas;
 import net.minecraft.datafixer.TypeReferences;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtElement;
-import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtInt;
 import net.minecraft.nbt.NbtList;
 import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.NbtSizeValidationException;
 import net.minecraft.nbt.NbtTagSizeTracker;
+import net.minecraft.nbt.NbtTypes;
 import net.minecraft.registry.RegistryKey;
 import net.minecraft.registry.RegistryKeys;
+import net.minecraft.resource.ResourceManager;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.util.Identifier;
+import net.minecraft.util.Util;
 import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.PalettedContainer;
+import org.apache.commons.io.FilenameUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 public final class MapTemplateSerializer {
     private static final Logger LOGGER = LogManager.getLogger(MapTemplateSerializer.class);
     private static final boolean SKIP_FIXERS = FabricLoader.getInstance().isModLoaded("databreaker");
 
+    private static final MapTemplateCache CACHE = new MapTemplateCache(64 * 1024 * 1024);
+    private static final AtomicLong SAVED_FIXER_CALLS = new AtomicLong();
+
+    private static volatile long maxLoadBytes = Long.MAX_VALUE;
+
+    @Nullable
+    private static volatile Path upgradeCacheDirectory = getDefaultUpgradeCacheDirectory();
+
     private MapTemplateSerializer() {
     }
 
+    /**
+     * Get the cache used by {@link #loadFromResource}.
+     *
+     * @return The template cache.
+     */
+    public static MapTemplateCache getCache() {
+        return CACHE;
+    }
+
+    /**
+     * Get the number of block state datafixer calls that have been skipped
+     * because an identical palette entry was already fixed earlier in the same
+     * load.
+     *
+     * @return Total saved fixer calls since startup.
+     */
+    public static long getSavedFixerCalls() {
+        return SAVED_FIXER_CALLS.get();
+    }
+
+    @Nullable
+    private static Path getDefaultUpgradeCacheDirectory() {
+        try {
+            return FabricLoader.getInstance().getGameDir().resolve("map-templates-cache");
+        } catch (IllegalStateException e) {
+            // Outside of a launched game, like in benchmarks, there's no game directory to cache in.
+            return null;
+        }
+    }
+
+    /**
+     * Set where upgraded copies of outdated resource templates are kept. When a
+     * template from resources has to be datafixed, the upgraded result is
+     * written here, and later loads of the same unchanged resource read it
+     * instead of running the fixers again.
+     *
+     * @param directory The cache directory, or <code>null</code> to disable the
+     *                  upgrade cache.
+     */
+    public static void setUpgradeCacheDirectory(@Nullable Path directory) {
+        upgradeCacheDirectory = directory;
+    }
+
+    @Nullable
+    public static Path getUpgradeCacheDirectory() {
+        return upgradeCacheDirectory;
+    }
+
+    /**
+     * Set the maximum amount of uncompressed NBT that {@link #loadFrom(InputStream)}
+     * and resource loads will read before giving up on a template. This guards
+     * against corrupt or malicious files. Indexed templates apply the limit to
+     * their root and to each chunk separately, using the limit set when they're
+     * opened.
+     *
+     * @param maxBytes The limit in bytes. Unlimited by default.
+     */
+    public static void setMaxLoadBytes(long maxBytes) {
+        maxLoadBytes = maxBytes;
+    }
+
+    public static long getMaxLoadBytes() {
+        return maxLoadBytes;
+    }
+
+    /**
+     * Load a template from the server's resources. Templates are cached, so
+     * repeated loads of the same identifier only pay for a copy.
+     *
+     * @param server     Server to load resources from.
+     * @param identifier Template identifier.
+     * @return The loaded template. The caller owns it and may modify it freely.
+     * @throws IOException If the template could not be loaded.
+     */
     public static MapTemplate loadFromResource(MinecraftServer server, Identifier identifier) throws IOException {
-        var path = getResourcePathFor(identifier);
+        return CACHE.get(server, identifier);
+    }
 
-        var resourceManager = server.getResourceManager();
+    /**
+     * Load a template from the server's resources without blocking. The resource
+     * is looked up on the calling thread, and all decoding happens on the
+     * executor.
+     *
+     * @param server     Server to load resources from.
+     * @param identifier Template identifier.
+     * @param executor   An executor to decode the template on. If
+     *                   <code>null</code>, {@link Util#getMainWorkerExecutor()}
+     *                   is used.
+     * @return A future with the loaded template.
+     */
+    public static CompletableFuture<MapTemplate> loadFromResourceAsync(MinecraftServer server, Identifier identifier,
+            @Nullable Executor executor) {
+        if (executor == null)
+                executor = Util.getMainWorkerExecutor();
+
+        return CACHE.getAsync(server, identifier, executor);
+    }
+
+    static InputStream openResource(ResourceManager resourceManager, Identifier identifier) throws IOException {
+        var path = getResourcePathFor(identifier);
         var resource = resourceManager.getResource(path);
 
         if (resource.isEmpty()) {
             throw new IOException("No resource found for " + identifier);
         }
 
-        return loadFrom(resource.get().getInputStream());
+        return resource.get().getInputStream();
+    }
+
+    /**
+     * Load a template that came from resources, going through the upgrade cache
+     * if it's enabled.
+     */
+    static MapTemplate loadResource(Identifier identifier, InputStream input) throws IOException {
+        var directory = upgradeCacheDirectory;
+        if (directory == null) {
+            var template = MapTemplate.createEmpty();
+            read(template, input, maxLoadBytes, identifier.toString());
+            return template;
+        }
+
+        byte[] source = input.readAllBytes();
+        String hash = Hashing.sha256().hashBytes(source).toString();
+
+        Path parent = directory.resolve(identifier.getNamespace()).resolve(identifier.getPath()).getParent();
+        String baseName = FilenameUtils.getName(identifier.getPath());
+        Path cachedPath = parent.resolve(baseName + "-" + hash + ".nbt");
+
+        if (Files.isRegularFile(cachedPath)) {
+            try (var cachedInput = new BufferedInputStream(Files.newInputStream(cachedPath))) {
+                var template = MapTemplate.createEmpty();
+
+                // If the game has been updated since, the cached copy needs fixing too; start again from the source.
+                if (read(template, cachedInput, maxLoadBytes, identifier.toString()) == getSaveVersion()) {
+                    return template;
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read upgraded copy of template {}", identifier, e);
+            }
+        }
+
+        var template = MapTemplate.createEmpty();
+        boolean outdated = read(template, new ByteArrayInputStream(source), maxLoadBytes, identifier.toString()) < getSaveVersion();
+
+        if (outdated && !SKIP_FIXERS) {
+            try {
+                writeUpgradedCopy(template, parent, baseName, cachedPath);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to cache upgraded copy of template {}", identifier, e);
+            }
+        }
+
+        return template;
+    }
+
+    private static void writeUpgradedCopy(MapTemplate template, Path parent, String baseName, Path path) throws IOException {
+        Files.createDirectories(parent);
+
+        // Copies for older versions of the resource will never be read again. Only match the exact
+        // "<name>-<sha256>.nbt" shape, so a template whose name starts with this one keeps its copies.
+        var stalePattern = Pattern.compile(Pattern.quote(baseName) + "-[0-9a-f]{64}\\.nbt");
+        try (var stale = Files.newDirectoryStream(parent,
+                entry -> stalePattern.matcher(entry.getFileName().toString()).matches())) {
+            for (Path stalePath : stale) {
+                Files.deleteIfExists(stalePath);
+            }
+        }
+
+        Path tempPath = Files.createTempFile(parent, baseName, ".tmp");
+        try {
+            try (var output = new BufferedOutputStream(Files.newOutputStream(tempPath))) {
+                saveTo(template, output);
+            }
+            Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempPath);
+        }
     }
 
     public static MapTemplate loadFrom(InputStream input) throws IOException {
+        return loadFrom(input, maxLoadBytes);
+    }
+
+    /**
+     * Load a template from a compressed stream. Chunks are decoded while the
+     * stream is read, so the full NBT tree is never held in memory at once. Any
+     * {@link TemplateCompression} is detected automatically.
+     *
+     * @param input    Stream to read the compressed template from. It is closed
+     *                 once the template has been read.
+     * @param maxBytes Maximum amount of uncompressed NBT to read.
+     * @return The loaded template.
+     * @throws IOException If the stream can't be read, isn't a valid template,
+     *                     or exceeds <code>maxBytes</code>.
+     */
+    public static MapTemplate loadFrom(InputStream input, long maxBytes) throws IOException {
         var template = MapTemplate.createEmpty();
-        load(template, NbtIo.readCompressed(input, NbtTagSizeTracker.ofUnlimitedBytes()));
+        read(template, input, maxBytes, null);
         return template;
     }
 
+    /**
+     * Load a template from a stream without blocking. The stream is read on the
+     * executor, so it must not be used or closed by anything else until the
+     * future completes.
+     *
+     * @param input    Stream to read the compressed template from. It is closed
+     *                 once the template has been read, before the future
+     *                 completes.
+     * @param executor An executor to decode the template on. If
+     *                 <code>null</code>, {@link Util#getMainWorkerExecutor()} is
+     *                 used.
+     * @return A future with the loaded template.
+     */
+    public static CompletableFuture<MapTemplate> loadFromAsync(InputStream input, @Nullable Executor executor) {
+        if (executor == null)
+                executor = Util.getMainWorkerExecutor();
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return loadFrom(input);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Save a template in the indexed format, where every chunk is compressed on
+     * its own behind an index. Files in this format can be opened lazily with
+     * {@link #openIndexed}.
+     * <p>
+     * The file is replaced only once the new one has been written in full, so
+     * templates still opened from it are unaffected.
+     *
+     * @param template Template to save.
+     * @param path     File to write.
+     * @throws IOException If the file could not be written.
+     */
+    public static void saveIndexedTo(MapTemplate template, Path path) throws IOException {
+        IndexedTemplateFormat.write(template, path);
+    }
+
+    /**
+     * Save a template in the indexed format, only appending the chunks that
+     * changed since it was last saved to or opened from the same file. This
+     * makes saving a large template repeatedly, such as for autosaves while
+     * editing, cost little more than the changes themselves. Unlike
+     * {@link #saveIndexedTo}, lazily opened templates stay lazy.
+     * <p>
+     * Replaced chunks are left in the file until more than half of it is
+     * unused, at which point it's compacted. If the template doesn't come from
+     * this file, the file has been changed by something else since, or it was
+     * saved by an older version, it's written in full like
+     * {@link #saveIndexedTo}.
+     * <p>
+     * Block and block entity changes are tracked by each chunk; changes made
+     * directly to block entity NBT must be flagged with
+     * {@link MapChunk#markDirty()}.
+     *
+     * @param template Template to save.
+     * @param path     File to write.
+     * @throws IOException If the file could not be written.
+     */
+    public static void saveIndexedDelta(MapTemplate template, Path path) throws IOException {
+        IndexedTemplateFormat.writeDelta(template, path);
+    }
+
+    /**
+     * Open a template saved with {@link #saveIndexedTo} without reading its
+     * chunks. Chunks are only loaded once they're accessed, so using a small
+     * region of a huge map only costs that region.
+     * <p>
+     * The file stays open until the template is {@link MapTemplate#loadFully()
+     * fully loaded} or {@link MapTemplate#close() closed}.
+     *
+     * @param path File to open.
+     * @return The lazily loaded template.
+     * @throws IOException If the file could not be opened or isn't an indexed
+     *                     template.
+     */
+    public static MapTemplate openIndexed(Path path) throws IOException {
+        return IndexedTemplateFormat.open(path);
+    }
+
+    /**
+     * Open a template saved with {@link #saveIndexedTo} by memory-mapping it.
+     * Like {@link #openIndexed}, chunks are only decoded once they're accessed,
+     * but the index stays in the mapping as well and decoded chunks are dropped
+     * again once they exceed the heap budget. This keeps heap usage bounded
+     * when reading or placing templates far larger than the heap.
+     * <p>
+     * Chunks taken over by the template through
+     * {@link MapTemplate#getOrCreateChunk} are kept regardless of the budget.
+     *
+     * @param path         File to open.
+     * @param maxHeapBytes Approximate maximum heap usage of decoded chunks, in
+     *                     bytes.
+     * @return The lazily loaded template.
+     * @throws IOException If the file could not be opened or isn't an indexed
+     *                     template.
+     */
+    public static MapTemplate openMapped(Path path, long maxHeapBytes) throws IOException {
+        return IndexedTemplateFormat.openMapped(path, maxHeapBytes);
+    }
+
     public static void saveTo(MapTemplate template, OutputStream output) throws IOException {
-        var root = save(template);
-        NbtIo.writeCompressed(root, output);
+        saveTo(template, output, TemplateCompression.GZIP);
+    }
+
+    /**
+     * Save a template with a specific compression. {@link #loadFrom(InputStream)}
+     * detects the compression by itself, but only gzip can be read by versions
+     * of this library that predate the other compressions.
+     *
+     * @param template    Template to save.
+     * @param output      Stream to write to. It is closed once the template has
+     *                    been written.
+     * @param compression Compression to use.
+     * @throws IOException If the template could not be written.
+     */
+    public static void saveTo(MapTemplate template, OutputStream output, TemplateCompression compression)
+            throws IOException {
+        saveTo(template, output, compression, false);
+    }
+
+    /**
+     * Save a template with a specific compression, optionally writing chunks
+     * with identical blocks only once.
+     * <p>
+     * Shared sections make templates built from repeated pieces much smaller,
+     * but versions of this library that predate them don't reject such files:
+     * they load every chunk that shares its blocks as air. Only share sections
+     * in files that are never read by older versions.
+     *
+     * @param template       Template to save.
+     * @param output         Stream to write to. It is closed once the template
+     *                       has been written.
+     * @param compression    Compression to use.
+     * @param shareSections  Whether to write identical chunk blocks only once.
+     * @throws IOException If the template could not be written.
+     */
+    public static void saveTo(MapTemplate template, OutputStream output, TemplateCompression compression,
+            boolean shareSections) throws IOException {
+        var metrics = TemplateMetrics.start(TemplateMetrics.Operation.SAVE);
+        long start = metrics.time();
+
+        var compressed = metrics.time(compression.compress(output), TemplateMetrics.Phase.COMPRESS);
+        try (var data = new DataOutputStream(new BufferedOutputStream(compressed))) {
+            write(template, data, shareSections, metrics);
+        }
+
+        if (metrics.isEnabled()) {
+            long serializeNanos = System.nanoTime() - start - metrics.getNanos(TemplateMetrics.Phase.COMPRESS);
+            metrics.add(TemplateMetrics.Phase.SERIALIZE, serializeNanos);
+            metrics.finish();
+        }
     }
 
-    private static int getDataVersion(NbtCompound root) {
+    static int getDataVersion(NbtCompound root) {
         if (root.contains("data_version", NbtElement.NUMBER_TYPE)) {
             return root.getInt("data_version");
         }
@@ -67,82 +439,338 @@ public final class MapTemplateSerializer {
         return 2586;
     }
 
-    private static int getSaveVersion() {
+    static int getSaveVersion() {
         return SharedConstants.getGameVersion().getSaveVersion().getId();
     }
 
-    private static void load(MapTemplate template, NbtCompound root) {
-        load(template, root, Schemas.getFixer());
-    }
-
-    private static void load(MapTemplate template, NbtCompound root, DataFixer fixer) {
-        int oldVersion = getDataVersion(root);
-        int targetVersion = getSaveVersion();
-
-        var chunkList = root.getList("chunks", NbtElement.COMPOUND_TYPE);
-        for (int i = 0; i < chunkList.size(); i++) {
-            var chunkRoot = chunkList.getCompound(i);
-
-            if (targetVersion > oldVersion) {
-                // Apply data fixer to chunk palette and entities
-
-                if (oldVersion <= 2730) {
-                    var palette = chunkRoot.getList("palette", NbtElement.COMPOUND_TYPE);
-                    var blockData = chunkRoot.getLongArray("block_states");
-                    chunkRoot.remove("palette");
+    /**
+     * Read a compressed template, building each chunk as soon as its compound has
+     * been read instead of reading the whole NBT tree first.
+     *
+     * @param name Name of the template to report in its metrics, if it has one.
+     * @return The data version the template was saved with.
+     */
+    private static int read(MapTemplate template, InputStream input, long maxBytes, @Nullable String name)
+            throws IOException {
+        var tracker = NbtTagSizeTracker.of(maxBytes);
+        var metrics = TemplateMetrics.start(TemplateMetrics.Operation.LOAD);
+        metrics.setName(name);
+        long start = metrics.time();
+
+        var decompressed = metrics.time(TemplateCompression.decompress(input), TemplateMetrics.Phase.DECOMPRESS);
+        try (var data = new DataInputStream(new BufferedInputStream(decompressed))) {
+            if (data.readByte() != NbtElement.COMPOUND_TYPE) {
+                throw new IOException("Template root tag must be a compound");
+            }
+            data.readUTF();
+
+            var root = new NbtCompound();
+            ChunkLoader chunkLoader = null;
+            List<NbtCompound> pendingChunks = new ArrayList<>();
+
+            byte type;
+            while ((type = data.readByte()) != NbtElement.END_TYPE) {
+                String key = data.readUTF();
+
+                if (key.equals("sections") && type == NbtElement.LIST_TYPE) {
+                    // The section table is written before the chunks that refer to it.
+                    if (chunkLoader == null) {
+                        chunkLoader = new ChunkLoader(template, getDataVersion(root), metrics);
+                        pendingChunks.forEach(chunkLoader::add);
+                        pendingChunks.clear();
+                    }
+                    chunkLoader.setSections(NbtList.TYPE.read(data, tracker));
+                } else if (key.equals("chunks") && type == NbtElement.LIST_TYPE) {
+                    byte elementType = data.readByte();
+                    int count = data.readInt();
+                    if (count > 0 && elementType != NbtElement.COMPOUND_TYPE) {
+                        throw new IOException("Template chunks must be compounds");
+                    }
+
+                    for (int i = 0; i < count; i++) {
+                        var chunkRoot = NbtCompound.TYPE.read(data, tracker);
+                        if (chunkLoader != null) {
+                            chunkLoader.add(chunkRoot);
+                        } else {
+                            // Chunks can't be fixed until we know which version they're from.
+                            pendingChunks.add(chunkRoot);
+                        }
+                    }
+                } else {
+                    root.put(key, NbtTypes.byId(type).read(data, tracker));
 
-                    var blockStates = new NbtCompound();
-                    blockStates.putLongArray("data", blockData);
-                    blockStates.put("palette", palette);
-                    chunkRoot.put("block_states", blockStates);
+                    if (chunkLoader == null && key.equals("data_version")) {
+                        chunkLoader = new ChunkLoader(template, getDataVersion(root), metrics);
+                        pendingChunks.forEach(chunkLoader::add);
+                        pendingChunks.clear();
+                    }
                 }
+            }
 
-                if (!SKIP_FIXERS) {
-                    var palette = chunkRoot.getCompound("block_states").getList("palette", NbtElement.COMPOUND_TYPE);
-                    updateList(palette, fixer, TypeReferences.BLOCK_STATE, oldVersion, targetVersion);
+            if (chunkLoader == null) {
+                chunkLoader = new ChunkLoader(template, getDataVersion(root), metrics);
+                pendingChunks.forEach(chunkLoader::add);
+            }
+            chunkLoader.finish();
 
-                    var entities = chunkRoot.getList("entities", NbtElement.COMPOUND_TYPE);
-                    updateList(entities, fixer, TypeReferences.ENTITY, oldVersion, targetVersion);
-                } else {
-                    LOGGER.error("Couldn't apply datafixers to template because databreaker is present!");
-                }
+            if (metrics.isEnabled()) {
+                // Everything not spent decompressing or decoding chunks went into parsing.
+                long parseNanos = System.nanoTime() - start - metrics.getNanos(TemplateMetrics.Phase.DECOMPRESS)
+                        - chunkLoader.decodeNanos;
+                metrics.add(TemplateMetrics.Phase.PARSE, parseNanos);
             }
 
-            var posArray = chunkRoot.getIntArray("pos");
-            if (posArray.length != 3) {
-                LOGGER.warn("Invalid chunk pos key: {}", posArray);
-                continue;
+            // Older files list empty chunks, which aren't kept, so keep the area they covered.
+            var emptyChunkBounds = chunkLoader.emptyChunkBounds;
+            if (emptyChunkBounds != null) {
+                template.bounds = template.hasChunks() ? template.getBounds().union(emptyChunkBounds) : emptyChunkBounds;
             }
 
-            long pos = MapTemplate.chunkPos(posArray[0], posArray[1], posArray[2]);
-            var chunk = MapChunk.deserialize(ChunkSectionPos.from(pos), chunkRoot);
+            long rootStart = metrics.time();
+            loadRoot(template, root);
+            metrics.record(TemplateMetrics.Phase.DESERIALIZE, rootStart);
+            metrics.addEntities(template.getEntities().size());
+            metrics.finish();
 
-            template.chunks.put(pos, chunk);
+            return chunkLoader.oldVersion;
+        } catch (NbtSizeValidationException e) {
+            throw new IOException("Template is too large: " + e.getMessage(), e);
         }
+    }
 
+    static void loadRoot(MapTemplate template, NbtCompound root) {
         var metadata = template.metadata;
 
         var regionList = root.getList("regions", NbtElement.COMPOUND_TYPE);
         for (int i = 0; i < regionList.size(); i++) {
             var regionRoot = regionList.getCompound(i);
-            metadata.regions.add(TemplateRegion.deserialize(regionRoot));
+            metadata.addRegion(TemplateRegion.deserialize(regionRoot));
         }
 
         NbtList entityList = root.getList("entities", NbtElement.COMPOUND_TYPE);
         if (entityList != null) {
             for (int i = 0; i < entityList.size(); i++) {
-                MapEntity mapEntity = MapEntity.fromNbt(root);
-                template.entities.add(mapEntity);
+                MapEntity mapEntity = MapEntity.fromNbt(entityList.getCompound(i));
+                template.addEntity(mapEntity);
             }
         }
 
-        // template.bounds = BlockBounds.deserialize(root.getCompound("bounds"));
+        if (root.contains("bounds", NbtElement.COMPOUND_TYPE)) {
+            template.bounds = BlockBounds.deserialize(root.getCompound("bounds"));
+        }
         metadata.data = root.getCompound("data");
 
         var biomeId = root.getString("biome");
         if (!Strings.isNullOrEmpty(biomeId)) {
             template.biome = RegistryKey.of(RegistryKeys.BIOME, new Identifier(biomeId));
         }
+
+        // Heights may no longer match once the blocks have been datafixed.
+        if (root.contains("heightmaps", NbtElement.COMPOUND_TYPE)) {
+            template.saveHeightmaps = true;
+            if (getDataVersion(root) == getSaveVersion()) {
+                template.heightmaps.deserialize(root.getCompound("heightmaps"), template);
+            }
+        }
+    }
+
+    /**
+     * Fixes and decodes chunks as they're read. Chunks are independent, so they
+     * are collected into batches that are decoded in parallel and only then
+     * inserted into the template. This bounds the amount of raw chunk NBT held
+     * at once.
+     * <p>
+     * Chunks with identical blocks share a single container. Blocks from the
+     * section table are decoded once and shared by every chunk that refers to
+     * them, and other chunks are pooled as they're decoded.
+     */
+    private static final class ChunkLoader {
+        private static final int BATCH_SIZE = 256;
+
+        private final MapTemplate template;
+        private final TemplateMetrics metrics;
+        private final DataFixer fixer = Schemas.getFixer();
+        private final PaletteFixer paletteFixer;
+        private final int oldVersion;
+        private final int targetVersion;
+
+        private final List<NbtCompound> batch = new ArrayList<>(BATCH_SIZE);
+        private int chunkCount;
+
+        private final SectionPool pool = new SectionPool();
+        private List<MapChunk> sections = List.of();
+
+        /**
+         * Wall time spent decoding chunks, which is left out of parsing.
+         */
+        long decodeNanos;
+
+        /**
+         * The area covered by chunks that were dropped for being empty, if any.
+         */
+        @Nullable
+        BlockBounds emptyChunkBounds;
+
+        ChunkLoader(MapTemplate template, int oldVersion, TemplateMetrics metrics) {
+            this.template = template;
+            this.metrics = metrics;
+            this.oldVersion = oldVersion;
+            this.targetVersion = getSaveVersion();
+            this.paletteFixer = new PaletteFixer(this.fixer, oldVersion, this.targetVersion);
+
+            if (this.targetVersion > oldVersion && SKIP_FIXERS) {
+                LOGGER.error("Couldn't apply datafixers to template because databreaker is present!");
+            }
+        }
+
+        void add(NbtCompound chunkRoot) {
+            this.batch.add(chunkRoot);
+            this.chunkCount++;
+
+            if (this.batch.size() >= BATCH_SIZE) {
+                this.flush();
+            }
+        }
+
+        /**
+         * Decode the section table. Each entry is decoded like the blocks of a
+         * regular chunk.
+         */
+        void setSections(NbtList sectionList) {
+            this.flush();
+
+            long start = this.metrics.time();
+            this.sections = sectionList.stream().parallel()
+                    .map(section -> {
+                        var chunkRoot = new NbtCompound();
+                        chunkRoot.putIntArray("pos", new int[] { 0, 0, 0 });
+                        chunkRoot.put("block_states", section);
+
+                        var chunk = loadChunk(chunkRoot, this.fixer, this.paletteFixer, this.oldVersion,
+                                this.targetVersion, this.metrics);
+                        if (chunk != null) chunk.intern(this.pool);
+                        return chunk;
+                    })
+                    .toList();
+
+            if (this.metrics.isEnabled()) this.decodeNanos += System.nanoTime() - start;
+        }
+
+        @Nullable
+        private MapChunk decode(NbtCompound chunkRoot) {
+            var chunk = loadChunk(chunkRoot, this.fixer, this.paletteFixer, this.oldVersion, this.targetVersion,
+                    this.metrics);
+            if (chunk == null) return null;
+
+            if (chunkRoot.contains("section", NbtElement.NUMBER_TYPE)) {
+                int section = chunkRoot.getInt("section");
+                MapChunk blocks = section >= 0 && section < this.sections.size() ? this.sections.get(section) : null;
+
+                if (blocks != null) {
+                    chunk.copyBlocksFrom(blocks);
+                } else {
+                    LOGGER.warn("Chunk {} refers to missing section {}", chunk.getPos(), section);
+                }
+            } else {
+                chunk.intern(this.pool);
+            }
+            return chunk;
+        }
+
+        private void flush() {
+            long start = this.metrics.time();
+            List<MapChunk> decoded = this.batch.parallelStream()
+                    .map(this::decode)
+                    .filter(chunk -> chunk != null)
+                    .toList();
+            this.batch.clear();
+
+            List<MapChunk> chunks = new ArrayList<>(decoded.size());
+            for (MapChunk chunk : decoded) {
+                if (chunk.hasContent()) {
+                    this.template.putChunk(chunk);
+                    chunks.add(chunk);
+                } else {
+                    var pos = chunk.getPos();
+                    var bounds = BlockBounds.of(pos.getMinX(), pos.getMinY(), pos.getMinZ(), pos.getMaxX(), pos.getMaxY(), pos.getMaxZ());
+                    this.emptyChunkBounds = this.emptyChunkBounds != null ? this.emptyChunkBounds.union(bounds) : bounds;
+                }
+            }
+
+            if (this.metrics.isEnabled()) {
+                this.decodeNanos += System.nanoTime() - start;
+                this.metrics.addSections(chunks.size());
+                for (MapChunk chunk : chunks) {
+                    this.metrics.addBlockEntities(chunk.getBlockEntities().size());
+                }
+            }
+        }
+
+        void finish() {
+            this.flush();
+
+            int savedFixes = this.paletteFixer.getSavedCalls();
+            if (savedFixes > 0) {
+                SAVED_FIXER_CALLS.addAndGet(savedFixes);
+                LOGGER.debug("Reused fixed block states {} times across {} chunks", savedFixes, this.chunkCount);
+            }
+        }
+    }
+
+    @Nullable
+    private static MapChunk loadChunk(NbtCompound chunkRoot, DataFixer fixer, PaletteFixer paletteFixer,
+            int oldVersion, int targetVersion, TemplateMetrics metrics) {
+        long start = metrics.time();
+        if (targetVersion > oldVersion) {
+            // Apply data fixer to chunk palette and entities
+
+            if (oldVersion <= 2730) {
+                var palette = chunkRoot.getList("palette", NbtElement.COMPOUND_TYPE);
+                var blockData = chunkRoot.getLongArray("block_states");
+                chunkRoot.remove("palette");
+
+                var blockStates = new NbtCompound();
+                blockStates.putLongArray("data", blockData);
+                blockStates.put("palette", palette);
+                chunkRoot.put("block_states", blockStates);
+            }
+
+            if (!SKIP_FIXERS) {
+                var palette = chunkRoot.getCompound("block_states").getList("palette", NbtElement.COMPOUND_TYPE);
+                paletteFixer.update(palette);
+
+                var entities = chunkRoot.getList("entities", NbtElement.COMPOUND_TYPE);
+                updateList(entities, fixer, TypeReferences.ENTITY, oldVersion, targetVersion);
+            }
+            metrics.record(TemplateMetrics.Phase.DATAFIX, start);
+            start = metrics.time();
+        }
+
+        var posArray = chunkRoot.getIntArray("pos");
+        if (posArray.length != 3) {
+            LOGGER.warn("Invalid chunk pos key: {}", posArray);
+            return null;
+        }
+
+        var chunk = MapChunk.deserialize(ChunkSectionPos.from(posArray[0], posArray[1], posArray[2]), chunkRoot);
+        metrics.record(TemplateMetrics.Phase.DESERIALIZE, start);
+        return chunk;
+    }
+
+    /**
+     * Create a thread-safe function that fixes and decodes individual chunk
+     * compounds saved with the given data version.
+     * <p>
+     * Decoded chunks aren't pooled: the chunk sources using this drop chunks
+     * again to stay within their heap budget, which a pool holding on to every
+     * container would defeat.
+     */
+    static Function<NbtCompound, MapChunk> createChunkDecoder(int dataVersion) {
+        int targetVersion = getSaveVersion();
+        var fixer = Schemas.getFixer();
+        var paletteFixer = new PaletteFixer(fixer, dataVersion, targetVersion);
+
+        return chunkRoot -> loadChunk(chunkRoot, fixer, paletteFixer, dataVersion, targetVersion, TemplateMetrics.DISABLED);
     }
 
     private static void updateList(NbtList list, DataFixer fixer, TypeReference type, int oldVersion, int targetVersion) {
@@ -156,27 +784,159 @@ public final class MapTemplateSerializer {
         }
     }
 
-    private static NbtCompound save(MapTemplate template) {
-        var root = new NbtCompound();
+    /**
+     * Fixes block state palettes, remembering the result for each distinct
+     * palette entry so it's only run through the fixer once per load. Safe to
+     * share between threads.
+     */
+    private static final class PaletteFixer {
+        private final Map<NbtElement, NbtElement> fixed = new ConcurrentHashMap<>();
+        private final AtomicInteger savedCalls = new AtomicInteger();
+
+        private final DataFixer fixer;
+        private final int oldVersion;
+        private final int targetVersion;
+
+        PaletteFixer(DataFixer fixer, int oldVersion, int targetVersion) {
+            this.fixer = fixer;
+            this.oldVersion = oldVersion;
+            this.targetVersion = targetVersion;
+        }
 
-        int worldVersion = getSaveVersion();
-        root.putInt("data_version", worldVersion);
+        void update(NbtList palette) {
+            for (int i = 0; i < palette.size(); i++) {
+                // Entries are never modified after this, so results can be shared between palettes.
+                NbtElement raw = palette.get(i);
+                NbtElement result = this.fixed.get(raw);
 
-        var chunkList = new NbtList();
+                if (result != null) {
+                    this.savedCalls.incrementAndGet();
+                } else {
+                    Dynamic<NbtElement> dynamic = new Dynamic<>(NbtOps.INSTANCE, raw);
+                    result = this.fixer.update(TypeReferences.BLOCK_STATE, dynamic, this.oldVersion, this.targetVersion).getValue();
+
+                    NbtElement existing = this.fixed.putIfAbsent(raw, result);
+                    if (existing != null) result = existing;
+                }
+
+                palette.set(i, result);
+            }
+        }
 
-        for (var entry : Long2ObjectMaps.fastIterable(template.chunks)) {
-            var pos = ChunkSectionPos.from(entry.getLongKey());
-            var chunk = entry.getValue();
+        int getSavedCalls() {
+            return this.savedCalls.get();
+        }
+    }
+
+    private static void write(MapTemplate template, DataOutput output, boolean shareSections, TemplateMetrics metrics)
+            throws IOException {
+        template.loadFully();
+
+        output.writeByte(NbtElement.COMPOUND_TYPE);
+        output.writeUTF("");
+
+        // The data version goes first so readers know how to fix chunks as they stream in.
+        writeEntry(output, "data_version", NbtInt.of(getSaveVersion()));
+
+        var root = saveRoot(template);
+        for (String key : root.getKeys()) {
+            writeEntry(output, key, root.get(key));
+        }
+
+        // Empty chunks read back the same as missing ones, so they aren't written.
+        List<MapChunk> chunks = template.chunks.values().stream().filter(MapChunk::hasContent).toList();
+        metrics.addSections(chunks.size());
+        metrics.addEntities(template.getEntities().size());
+
+        List<PalettedContainer<BlockState>> sections = new ArrayList<>();
+        int[] chunkSections = new int[chunks.size()];
+
+        if (shareSections) {
+            // Find chunks with identical blocks, which only need to be written once.
+            var pool = new SectionPool();
+            List<PalettedContainer<BlockState>> containers = chunks.parallelStream()
+                    .map(chunk -> pool.intern(chunk.getContainer()))
+                    .toList();
+
+            var sectionIndices = new Reference2IntOpenHashMap<PalettedContainer<BlockState>>();
+            sectionIndices.defaultReturnValue(-1);
+
+            for (int i = 0; i < chunks.size(); i++) {
+                var container = containers.get(i);
+                int section = sectionIndices.getInt(container);
+                if (section < 0) {
+                    section = sections.size();
+                    sections.add(container);
+                    sectionIndices.put(container, section);
+                }
+                chunkSections[i] = section;
+            }
+        }
 
-            var chunkRoot = new NbtCompound();
+        // Only use a section table when it saves something.
+        boolean useSections = shareSections && sections.size() < chunks.size();
+        if (useSections) {
+            output.writeByte(NbtElement.LIST_TYPE);
+            output.writeUTF("sections");
+            output.writeByte(NbtElement.COMPOUND_TYPE);
+            output.writeInt(sections.size());
 
-            chunkRoot.putIntArray("pos", new int[] { pos.getX(), pos.getY(), pos.getZ() });
-            chunk.serialize(chunkRoot);
+            for (var section : sections) {
+                MapChunk.encodeBlocks(section).write(output);
+            }
+        }
 
-            chunkList.add(chunkRoot);
+        // Chunks go last and are encoded one at a time.
+        output.writeByte(NbtElement.LIST_TYPE);
+        output.writeUTF("chunks");
+        output.writeByte(NbtElement.COMPOUND_TYPE);
+        output.writeInt(chunks.size());
+
+        for (int i = 0; i < chunks.size(); i++) {
+            MapChunk chunk = chunks.get(i);
+            metrics.addBlockEntities(chunk.getBlockEntities().size());
+            if (useSections) {
+                saveChunk(chunk.getPos().asLong(), chunk, chunkSections[i]).write(output);
+            } else {
+                saveChunk(chunk.getPos().asLong(), chunk).write(output);
+            }
         }
 
-        root.put("chunks", chunkList);
+        output.writeByte(NbtElement.END_TYPE);
+    }
+
+    private static NbtCompound saveChunk(long chunkPos, MapChunk chunk) {
+        var pos = ChunkSectionPos.from(chunkPos);
+        var chunkRoot = new NbtCompound();
+
+        chunkRoot.putIntArray("pos", new int[] { pos.getX(), pos.getY(), pos.getZ() });
+        chunk.serialize(chunkRoot);
+
+        return chunkRoot;
+    }
+
+    /**
+     * Save a chunk whose blocks are stored in the section table.
+     */
+    private static NbtCompound saveChunk(long chunkPos, MapChunk chunk, int section) {
+        var pos = ChunkSectionPos.from(chunkPos);
+        var chunkRoot = new NbtCompound();
+
+        chunkRoot.putIntArray("pos", new int[] { pos.getX(), pos.getY(), pos.getZ() });
+        chunkRoot.putInt("section", section);
+        chunk.serializeBlockEntities(chunkRoot);
+
+        return chunkRoot;
+    }
+
+    private static void writeEntry(DataOutput output, String key, NbtElement element) throws IOException {
+        output.writeByte(element.getType());
+        output.writeUTF(key);
+        element.write(output);
+    }
+
+    static NbtCompound saveRoot(MapTemplate template) {
+        var root = new NbtCompound();
 
         NbtList entityList = new NbtList();
         for (MapEntity entity : template.entities) {
@@ -184,11 +944,10 @@ public final class MapTemplateSerializer {
         }
         root.put("entities", entityList);
 
-        // var blockEntityList = new NbtList();
-        // blockEntityList.addAll(template.streamBlockEntities().toList());
-        // root.put("block_entities", blockEntityList);
-
-        // root.put("bounds", template.bounds.serialize(new NbtCompound()));
+        // Empty chunks aren't saved, so the bounds can't always be worked out from the chunks that are.
+        if (template.bounds != null || template.hasChunks()) {
+            root.put("bounds", template.getBounds().serialize(new NbtCompound()));
+        }
 
         if (template.biome != null) {
             root.putString("biome", template.biome.getValue().toString());
@@ -204,6 +963,10 @@ public final class MapTemplateSerializer {
 
         root.put("data", metadata.data);
 
+        if (template.saveHeightmaps && !template.heightmaps.isEmpty()) {
+            root.put("heightmaps", template.heightmaps.serialize(new NbtCompound()));
+        }
+
         return root;
     }
 
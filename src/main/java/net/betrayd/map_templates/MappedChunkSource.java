@@ -0,0 +1,214 @@
+package net.betrayd.map_templates;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.longs.LongIterable;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import net.minecraft.nbt.NbtCompound;
+
+/**
+ * A chunk source that pages chunks in from a memory-mapped indexed template.
+ * <p>
+ * Neither the index nor the compressed chunks are copied onto the heap; the
+ * index is binary searched in place and only decoded chunks count against the
+ * heap budget. Decoded chunks are kept in an LRU and dropped once the budget is
+ * exceeded, to be decoded again from the mapping if they're needed later.
+ */
+final class MappedChunkSource implements MapChunkSource {
+    /**
+     * A single mapping can't be larger than 2 GiB, so big files are mapped in
+     * segments.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final MappedByteBuffer[] segments;
+    private final long indexOffset;
+    private final int chunkCount;
+    private final Function<NbtCompound, MapChunk> decoder;
+
+    private final LinkedHashMap<Long, Entry> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxHeapBytes;
+    private final long maxLoadBytes;
+    private long heapBytes;
+
+    private record Entry(MapChunk chunk, long size) {
+    }
+
+    /**
+     * @param maxLoadBytes The most NBT a single chunk may decompress to.
+     */
+    MappedChunkSource(MappedByteBuffer[] segments, long indexOffset, int chunkCount, long maxHeapBytes,
+            long maxLoadBytes, Function<NbtCompound, MapChunk> decoder) {
+        this.segments = segments;
+        this.indexOffset = indexOffset;
+        this.chunkCount = chunkCount;
+        this.maxHeapBytes = maxHeapBytes;
+        this.maxLoadBytes = maxLoadBytes;
+        this.decoder = decoder;
+    }
+
+    static MappedByteBuffer[] map(FileChannel channel) throws IOException {
+        long size = channel.size();
+        var segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        for (int i = 0; i < segments.length; i++) {
+            long offset = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_SIZE, size - offset));
+        }
+        return segments;
+    }
+
+    @Override
+    public LongIterable getPositions() {
+        return () -> new LongIterator() {
+            int i;
+
+            @Override
+            public boolean hasNext() {
+                return this.i < MappedChunkSource.this.chunkCount;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                return MappedChunkSource.this.getLong(MappedChunkSource.this.indexEntry(this.i++));
+            }
+        };
+    }
+
+    @Override
+    @Nullable
+    public MapChunk get(long pos) {
+        synchronized (this.loaded) {
+            var entry = this.loaded.get(pos);
+            if (entry != null) return entry.chunk();
+        }
+
+        int i = this.find(pos);
+        if (i < 0) return null;
+
+        // Decode outside the lock so chunks can be paged in in parallel.
+        long entry = this.indexEntry(i);
+        long offset = this.getLong(entry + 8);
+        byte[] data = new byte[this.getInt(entry + 16)];
+        this.read(offset, data);
+
+        MapChunk chunk;
+        try {
+            chunk = this.decoder.apply(IndexedTemplateFormat.readChunk(ByteBuffer.wrap(data), pos, this.maxLoadBytes));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read chunk " + pos, e);
+        }
+        if (chunk == null) return null;
+        chunk.markClean();
+
+        synchronized (this.loaded) {
+            var existing = this.loaded.get(pos);
+            if (existing != null) return existing.chunk();
+
+            long size = chunk.estimateSize();
+            this.loaded.put(pos, new Entry(chunk, size));
+            this.heapBytes += size;
+            this.evict(pos);
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Drop the least recently used chunks until the budget is met, always
+     * keeping the chunk that was just loaded.
+     */
+    private void evict(long keep) {
+        Iterator<Map.Entry<Long, Entry>> iterator = this.loaded.entrySet().iterator();
+        while (this.heapBytes > this.maxHeapBytes && iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.getKey() == keep) continue;
+
+            this.heapBytes -= entry.getValue().size();
+            iterator.remove();
+        }
+    }
+
+    private int find(long pos) {
+        int low = 0;
+        int high = this.chunkCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long key = this.getLong(this.indexEntry(mid));
+            if (key < pos) {
+                low = mid + 1;
+            } else if (key > pos) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private long indexEntry(int i) {
+        return this.indexOffset + (long) i * IndexedTemplateFormat.INDEX_ENTRY_SIZE;
+    }
+
+    private long getLong(long position) {
+        var segment = this.segments[(int) (position / SEGMENT_SIZE)];
+        int offset = (int) (position % SEGMENT_SIZE);
+        if (offset + Long.BYTES <= segment.limit()) {
+            return segment.getLong(offset);
+        }
+
+        byte[] bytes = new byte[Long.BYTES];
+        this.read(position, bytes);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    private int getInt(long position) {
+        var segment = this.segments[(int) (position / SEGMENT_SIZE)];
+        int offset = (int) (position % SEGMENT_SIZE);
+        if (offset + Integer.BYTES <= segment.limit()) {
+            return segment.getInt(offset);
+        }
+
+        byte[] bytes = new byte[Integer.BYTES];
+        this.read(position, bytes);
+        return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    /**
+     * Copy bytes out of the mapping, crossing segment boundaries if needed.
+     * Absolute reads don't touch the buffers' positions, so this is safe to call
+     * from several threads.
+     */
+    private void read(long position, byte[] dst) {
+        int copied = 0;
+        while (copied < dst.length) {
+            var segment = this.segments[(int) (position / SEGMENT_SIZE)];
+            int offset = (int) (position % SEGMENT_SIZE);
+            int length = Math.min(dst.length - copied, segment.limit() - offset);
+
+            segment.get(offset, dst, copied, length);
+            copied += length;
+            position += length;
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.loaded) {
+            this.loaded.clear();
+            this.heapBytes = 0;
+        }
+        // The mapping itself is released once this source is garbage collected.
+    }
+}
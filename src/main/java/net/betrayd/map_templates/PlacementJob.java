@@ -0,0 +1,185 @@
+package net.betrayd.map_templates;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.chunk.WorldChunk;
+
+/**
+ * Places a map template into the world over the course of several ticks.
+ * <p>
+ * The job does nothing on its own: {@link #tick()} must be called once per
+ * server tick, for example from an end-of-tick callback. Each call places
+ * sections until the job's {@link Budget} is spent. Once every section has been
+ * placed, entities are spawned and {@link #getFuture()} completes.
+ * <p>
+ * Cancelling the future stops the job at the next tick, leaving whatever was
+ * already placed in the world.
+ */
+public final class PlacementJob {
+
+    /**
+     * How much work a placement job may do in a single tick. A job always places
+     * at least one section per tick, so it is guaranteed to finish.
+     *
+     * @param sections Maximum number of non-empty sections to place per tick.
+     * @param nanos    Maximum time to spend per tick, in nanoseconds.
+     */
+    public record Budget(int sections, long nanos) {
+        public static final Budget UNLIMITED = new Budget(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+        public static Budget ofSections(int sections) {
+            return new Budget(sections, Long.MAX_VALUE);
+        }
+
+        public static Budget ofMillis(long millis) {
+            return new Budget(Integer.MAX_VALUE, TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+
+    /**
+     * Supplies the payload for a given world section, or <code>null</code> if
+     * nothing is placed there.
+     */
+    @FunctionalInterface
+    interface SectionSource {
+        @Nullable
+        SectionPayload get(int chunkX, int sectionY, int chunkZ);
+    }
+
+    private final ServerWorld world;
+    private final long[] chunks;
+    private final int minSectionY;
+    private final int maxSectionY;
+    private final SectionSource sections;
+    private final ToIntFunction<ServerWorld> entitySpawner;
+    private final Budget budget;
+    private final TemplateMetrics metrics = TemplateMetrics.start(TemplateMetrics.Operation.PLACE);
+
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final LongList lightChecks = new LongArrayList();
+
+    private int chunkIndex = 0;
+    private int sectionY;
+    /**
+     * Whether any section of the current chunk has been placed, so it needs to be
+     * {@linkplain MapTemplatePlacer#finishChunk finished} once all are.
+     */
+    private boolean chunkPlaced;
+
+    PlacementJob(ServerWorld world, long[] chunks, int minSectionY, int maxSectionY, SectionSource sections,
+            ToIntFunction<ServerWorld> entitySpawner, Budget budget) {
+        this.world = world;
+        this.chunks = chunks;
+        this.minSectionY = minSectionY;
+        this.maxSectionY = maxSectionY;
+        this.sections = sections;
+        this.entitySpawner = entitySpawner;
+        this.budget = budget;
+        this.sectionY = minSectionY;
+    }
+
+    /**
+     * Get a future that completes once the template and its entities have been
+     * fully placed.
+     *
+     * @return The placement future.
+     */
+    public CompletableFuture<Void> getFuture() {
+        return this.future;
+    }
+
+    public boolean isDone() {
+        return this.future.isDone();
+    }
+
+    /**
+     * Do one tick's worth of placement. Must be called on the server thread.
+     *
+     * @return <code>true</code> if the job has finished and no longer needs to be
+     *         ticked.
+     */
+    public boolean tick() {
+        if (this.future.isDone()) {
+            // A cancelled job may have stopped partway through a chunk.
+            if (this.chunkPlaced) {
+                this.chunkPlaced = false;
+                long chunkPos = this.chunks[this.chunkIndex];
+                MapTemplatePlacer.finishChunk(this.world.getChunk(ChunkPos.getPackedX(chunkPos),
+                        ChunkPos.getPackedZ(chunkPos)), this.lightChecks);
+                this.lightChecks.clear();
+            }
+            return true;
+        }
+
+        var metrics = this.metrics;
+        try {
+            long startTime = System.nanoTime();
+            int placed = 0;
+
+            // Chunks may unload between ticks, so don't hold on to them.
+            WorldChunk chunk = null;
+
+            while (this.chunkIndex < this.chunks.length) {
+                long chunkPos = this.chunks[this.chunkIndex];
+                int chunkX = ChunkPos.getPackedX(chunkPos);
+                int chunkZ = ChunkPos.getPackedZ(chunkPos);
+
+                if (chunk == null) {
+                    chunk = this.world.getChunk(chunkX, chunkZ);
+                }
+
+                var payload = this.sections.get(chunkX, this.sectionY, chunkZ);
+                if (payload != null) {
+                    payload.applyTo(chunk, this.lightChecks);
+                    this.chunkPlaced = true;
+                    placed++;
+
+                    metrics.addSections(1);
+                    metrics.addBlockEntities(payload.getBlockEntityCount());
+                }
+
+                if (++this.sectionY > this.maxSectionY) {
+                    // Heightmaps are rebuilt for the whole chunk, so that's only done once all of it is placed.
+                    if (this.chunkPlaced) {
+                        MapTemplatePlacer.finishChunk(chunk, this.lightChecks);
+                        this.lightChecks.clear();
+                        this.chunkPlaced = false;
+                    }
+
+                    chunk = null;
+                    this.chunkIndex++;
+                    this.sectionY = this.minSectionY;
+                }
+
+                if (placed >= this.budget.sections() || System.nanoTime() - startTime >= this.budget.nanos()) {
+                    if (chunk != null && this.chunkPlaced) {
+                        // The chunk is finished once we come back to it, but must be saved if it unloads before then.
+                        chunk.setNeedsSaving(true);
+                    }
+                    if (metrics.isEnabled()) metrics.add(TemplateMetrics.Phase.PLACE_BLOCKS, System.nanoTime() - startTime);
+                    return false;
+                }
+            }
+            if (metrics.isEnabled()) metrics.add(TemplateMetrics.Phase.PLACE_BLOCKS, System.nanoTime() - startTime);
+
+            long spawnStart = metrics.time();
+            metrics.addEntities(this.entitySpawner.applyAsInt(this.world));
+            metrics.record(TemplateMetrics.Phase.SPAWN_ENTITIES, spawnStart);
+
+            this.future.complete(null);
+            metrics.finish();
+        } catch (Throwable e) {
+            this.future.completeExceptionally(e);
+        }
+
+        return true;
+    }
+}
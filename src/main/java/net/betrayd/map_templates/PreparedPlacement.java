@@ -0,0 +1,64 @@
+package net.betrayd.map_templates;
+
+import java.util.List;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.ChunkSectionPos;
+
+/**
+ * A template placement whose blocks, block entities and entities have already
+ * been translated into world space and bucketed by section, ready to be swapped
+ * into the world.
+ *
+ * @see MapTemplatePlacer#prepare
+ */
+public final class PreparedPlacement {
+    private final long[] chunks;
+    private final int minSectionY;
+    private final int maxSectionY;
+    private final Long2ObjectMap<SectionPayload> sections;
+    private final List<NbtCompound> entities;
+
+    PreparedPlacement(long[] chunks, int minSectionY, int maxSectionY, Long2ObjectMap<SectionPayload> sections,
+            List<NbtCompound> entities) {
+        this.chunks = chunks;
+        this.minSectionY = minSectionY;
+        this.maxSectionY = maxSectionY;
+        this.sections = sections;
+        this.entities = entities;
+    }
+
+    /**
+     * Apply the whole placement at once. Must be called on the server thread.
+     *
+     * @param world World to place into.
+     */
+    public void applyTo(ServerWorld world) {
+        var job = this.applyIncrementally(world, PlacementJob.Budget.UNLIMITED);
+        job.tick();
+        job.getFuture().join();
+    }
+
+    /**
+     * Apply the placement over several ticks. The returned job must be ticked by
+     * the caller; see {@link PlacementJob}.
+     *
+     * @param world  World to place into.
+     * @param budget How much work to do per tick.
+     * @return The placement job.
+     */
+    public PlacementJob applyIncrementally(ServerWorld world, PlacementJob.Budget budget) {
+        return new PlacementJob(world, this.chunks, this.minSectionY, this.maxSectionY,
+                (chunkX, sectionY, chunkZ) -> this.sections.get(ChunkSectionPos.asLong(chunkX, sectionY, chunkZ)),
+                this::spawnEntities, budget);
+    }
+
+    private int spawnEntities(ServerWorld world) {
+        for (NbtCompound nbt : this.entities) {
+            MapEntity.createEntities(world, nbt, world::spawnEntity);
+        }
+        return this.entities.size();
+    }
+}
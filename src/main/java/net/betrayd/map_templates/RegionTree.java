@@ -0,0 +1,154 @@
+package net.betrayd.map_templates;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * An immutable bounding volume hierarchy over template regions, used to find
+ * the regions containing a point or intersecting a box without testing every
+ * region.
+ * <p>
+ * The tree is built top-down by splitting regions at the median of their
+ * centers along the longest axis. Nodes are stored flat in arrays, with the
+ * regions of each leaf stored contiguously.
+ */
+final class RegionTree {
+    private static final int LEAF_SIZE = 4;
+
+    private final TemplateRegion[] regions;
+
+    // Node bounds.
+    private final int[] minX, minY, minZ, maxX, maxY, maxZ;
+    /**
+     * For leaves, the index of the first region. For inner nodes, the index of
+     * the right child; the left child always directly follows its parent.
+     */
+    private final int[] start;
+    /**
+     * For leaves, the number of regions. Zero for inner nodes.
+     */
+    private final int[] count;
+    private int nodeCount;
+
+    private RegionTree(TemplateRegion[] regions) {
+        this.regions = regions;
+
+        // A tree with n leaves has 2n - 1 nodes, and there are never more leaves than regions.
+        int capacity = Math.max(1, 2 * regions.length - 1);
+        this.minX = new int[capacity];
+        this.minY = new int[capacity];
+        this.minZ = new int[capacity];
+        this.maxX = new int[capacity];
+        this.maxY = new int[capacity];
+        this.maxZ = new int[capacity];
+        this.start = new int[capacity];
+        this.count = new int[capacity];
+    }
+
+    static RegionTree build(List<TemplateRegion> regions) {
+        var tree = new RegionTree(regions.toArray(TemplateRegion[]::new));
+        if (tree.regions.length > 0) {
+            tree.build(0, tree.regions.length);
+        }
+        return tree;
+    }
+
+    private int build(int from, int to) {
+        int node = this.nodeCount++;
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            var bounds = this.regions[i].getBounds();
+            minX = Math.min(minX, bounds.min().getX());
+            minY = Math.min(minY, bounds.min().getY());
+            minZ = Math.min(minZ, bounds.min().getZ());
+            maxX = Math.max(maxX, bounds.max().getX());
+            maxY = Math.max(maxY, bounds.max().getY());
+            maxZ = Math.max(maxZ, bounds.max().getZ());
+        }
+
+        this.minX[node] = minX;
+        this.minY[node] = minY;
+        this.minZ[node] = minZ;
+        this.maxX[node] = maxX;
+        this.maxY[node] = maxY;
+        this.maxZ[node] = maxZ;
+
+        if (to - from <= LEAF_SIZE) {
+            this.start[node] = from;
+            this.count[node] = to - from;
+            return node;
+        }
+
+        long sizeX = (long) maxX - minX;
+        long sizeY = (long) maxY - minY;
+        long sizeZ = (long) maxZ - minZ;
+
+        // Sort by doubled centers to avoid rounding.
+        Comparator<TemplateRegion> axis;
+        if (sizeX >= sizeY && sizeX >= sizeZ) {
+            axis = Comparator.comparingLong(r -> (long) r.getBounds().min().getX() + r.getBounds().max().getX());
+        } else if (sizeY >= sizeZ) {
+            axis = Comparator.comparingLong(r -> (long) r.getBounds().min().getY() + r.getBounds().max().getY());
+        } else {
+            axis = Comparator.comparingLong(r -> (long) r.getBounds().min().getZ() + r.getBounds().max().getZ());
+        }
+        Arrays.sort(this.regions, from, to, axis);
+
+        int mid = (from + to) >>> 1;
+        this.build(from, mid);
+        this.start[node] = this.build(mid, to);
+        this.count[node] = 0;
+        return node;
+    }
+
+    /**
+     * Visit every region containing a point.
+     */
+    void forEachAt(int x, int y, int z, Consumer<TemplateRegion> consumer) {
+        this.forEachIntersecting(x, y, z, x, y, z, consumer);
+    }
+
+    /**
+     * Visit every region intersecting a box. Bounds are inclusive.
+     */
+    void forEachIntersecting(int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+            Consumer<TemplateRegion> consumer) {
+        if (this.nodeCount == 0) return;
+
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = 0;
+
+        while (size > 0) {
+            int node = stack[--size];
+            if (this.maxX[node] < minX || this.minX[node] > maxX
+                    || this.maxY[node] < minY || this.minY[node] > maxY
+                    || this.maxZ[node] < minZ || this.minZ[node] > maxZ) {
+                continue;
+            }
+
+            int count = this.count[node];
+            if (count > 0) {
+                int start = this.start[node];
+                for (int i = start; i < start + count; i++) {
+                    var bounds = this.regions[i].getBounds();
+                    if (bounds.max().getX() >= minX && bounds.min().getX() <= maxX
+                            && bounds.max().getY() >= minY && bounds.min().getY() <= maxY
+                            && bounds.max().getZ() >= minZ && bounds.min().getZ() <= maxZ) {
+                        consumer.accept(this.regions[i]);
+                    }
+                }
+            } else {
+                if (size + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[size++] = this.start[node];
+                stack[size++] = node + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package net.betrayd.map_templates;
+
+import org.jetbrains.annotations.Nullable;
+
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.chunk.ChunkSection;
+import net.minecraft.world.chunk.PalettedContainer;
+import net.minecraft.world.chunk.WorldChunk;
+import net.minecraft.world.chunk.light.ChunkLightProvider;
+
+/**
+ * The blocks and block entities a template places into a single world chunk
+ * section, already translated into world space.
+ */
+final class SectionPayload {
+    private static final BlockState AIR = Blocks.AIR.getDefaultState();
+
+    private final ChunkSectionPos pos;
+    private final PalettedContainer<BlockState> states;
+    private final Int2ObjectMap<NbtCompound> blockEntities;
+
+    private SectionPayload(ChunkSectionPos pos, PalettedContainer<BlockState> states, Int2ObjectMap<NbtCompound> blockEntities) {
+        this.pos = pos;
+        this.states = states;
+        this.blockEntities = blockEntities;
+    }
+
+    public ChunkSectionPos getPos() {
+        return this.pos;
+    }
+
+    int getBlockEntityCount() {
+        return this.blockEntities.size();
+    }
+
+    /**
+     * Collect the part of a template that lands in a given world section.
+     * <p>
+     * If the origin is section-aligned and the template section lies fully inside
+     * the bounds, the template's container is copied as a whole. Otherwise, the
+     * overlapping template sections are copied into a fresh container block by
+     * block. Either way, the payload never shares a container with the template.
+     *
+     * @param template Template to read from.
+     * @param bounds   Template-space bounds to place.
+     * @param origin   World position of the template origin.
+     * @param pos      World section to collect.
+     * @return The payload, or <code>null</code> if nothing would be placed in the
+     *         section.
+     */
+    @Nullable
+    public static SectionPayload create(MapTemplate template, BlockBounds bounds, BlockPos origin, ChunkSectionPos pos) {
+        BlockBounds sectionBounds = BlockBounds.of(pos.getMinX(), pos.getMinY(), pos.getMinZ(),
+                pos.getMaxX(), pos.getMaxY(), pos.getMaxZ());
+
+        BlockBounds clip = bounds.offset(origin).intersection(sectionBounds);
+        if (clip == null) return null;
+
+        int originX = origin.getX();
+        int originY = origin.getY();
+        int originZ = origin.getZ();
+
+        // Template-space region covered by this section.
+        int minX = clip.min().getX() - originX;
+        int minY = clip.min().getY() - originY;
+        int minZ = clip.min().getZ() - originZ;
+        int maxX = clip.max().getX() - originX;
+        int maxY = clip.max().getY() - originY;
+        int maxZ = clip.max().getZ() - originZ;
+
+        boolean aligned = (originX & 0xF) == 0 && (originY & 0xF) == 0 && (originZ & 0xF) == 0;
+        Int2ObjectMap<NbtCompound> blockEntities = new Int2ObjectOpenHashMap<>();
+
+        if (aligned && clip.equals(sectionBounds)) {
+            MapChunk chunk = template.getChunk(MapTemplate.chunkPos(minX >> 4, minY >> 4, minZ >> 4));
+            if (chunk == null || !chunk.hasContent()) return null;
+
+            collectBlockEntities(chunk, origin, clip, blockEntities);
+            // Applying the payload locks its container, which would clash with other threads reading the
+            // template, so it gets a container of its own. Copying doesn't lock the template's.
+            return new SectionPayload(pos, chunk.getContainer().copy(), blockEntities);
+        }
+
+        PalettedContainer<BlockState> states = new PalettedContainer<>(Block.STATE_IDS, AIR,
+                PalettedContainer.PaletteProvider.BLOCK_STATE);
+        boolean empty = true;
+
+        for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+            for (int chunkY = minY >> 4; chunkY <= maxY >> 4; chunkY++) {
+                for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+                    MapChunk chunk = template.getChunk(MapTemplate.chunkPos(chunkX, chunkY, chunkZ));
+                    if (chunk == null || !chunk.hasContent()) continue;
+
+                    int x0 = Math.max(minX, chunkX << 4), x1 = Math.min(maxX, (chunkX << 4) + 15);
+                    int y0 = Math.max(minY, chunkY << 4), y1 = Math.min(maxY, (chunkY << 4) + 15);
+                    int z0 = Math.max(minZ, chunkZ << 4), z1 = Math.min(maxZ, (chunkZ << 4) + 15);
+
+                    for (int z = z0; z <= z1; z++) {
+                        for (int y = y0; y <= y1; y++) {
+                            for (int x = x0; x <= x1; x++) {
+                                BlockState state = chunk.get(x & 0xF, y & 0xF, z & 0xF);
+                                if (state.isAir()) continue;
+
+                                // The container is not shared yet, so there's no need to lock it.
+                                states.swapUnsafe((x + originX) & 0xF, (y + originY) & 0xF, (z + originZ) & 0xF, state);
+                                empty = false;
+                            }
+                        }
+                    }
+
+                    collectBlockEntities(chunk, origin, clip, blockEntities);
+                }
+            }
+        }
+
+        if (empty) return null;
+
+        return new SectionPayload(pos, states, blockEntities);
+    }
+
+    /**
+     * Copy the block entities of a template section that land inside the clip.
+     * Block entities outside of it belong to a neighbouring world section, and
+     * are skipped before being keyed by their local index so they can't replace
+     * one that is inside.
+     */
+    private static void collectBlockEntities(MapChunk chunk, BlockPos origin, BlockBounds clip, Int2ObjectMap<NbtCompound> out) {
+        ChunkSectionPos chunkPos = chunk.getPos();
+        for (var entry : chunk.getBlockEntities().long2ObjectEntrySet()) {
+            long localPos = entry.getLongKey();
+            int x = BlockPos.unpackLongX(localPos) + chunkPos.getMinX() + origin.getX();
+            int y = BlockPos.unpackLongY(localPos) + chunkPos.getMinY() + origin.getY();
+            int z = BlockPos.unpackLongZ(localPos) + chunkPos.getMinZ() + origin.getZ();
+            if (!clip.contains(x, y, z)) continue;
+
+            NbtCompound nbt = entry.getValue().copy();
+            nbt.putInt("x", x);
+            nbt.putInt("y", y);
+            nbt.putInt("z", z);
+
+            out.put(index(x & 0xF, y & 0xF, z & 0xF), nbt);
+        }
+    }
+
+    /**
+     * Write this payload into its world chunk. Air in the payload never replaces
+     * existing blocks.
+     * <p>
+     * Section counts are recalculated once at the end rather than per block, and
+     * neither block callbacks nor heightmap updates are run. Positions that need a
+     * light update are appended to <code>lightChecks</code> so they can be queued
+     * once the whole chunk has been written.
+     *
+     * @param chunk       The world chunk containing this section.
+     * @param lightChecks List to collect positions needing a light check into.
+     */
+    public void applyTo(WorldChunk chunk, LongList lightChecks) {
+        int sectionIndex = chunk.sectionCoordToIndex(this.pos.getSectionY());
+        if (sectionIndex < 0 || sectionIndex >= chunk.countVerticalSections()) return;
+
+        ChunkSection section = chunk.getSection(sectionIndex);
+        PalettedContainer<BlockState> target = section.getBlockStateContainer();
+
+        boolean wasEmpty = section.isEmpty();
+        if (wasEmpty) {
+            // Nothing to preserve: copy the whole container at once. The payload's container is its own, so
+            // locking it here can't clash with anything reading the template.
+            PacketByteBuf buf = new PacketByteBuf(Unpooled.buffer(this.states.getPacketSize()));
+            try {
+                this.states.writePacket(buf);
+                target.readPacket(buf);
+            } finally {
+                buf.release();
+            }
+        }
+
+        BlockPos.Mutable worldPos = new BlockPos.Mutable();
+
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    BlockState state = this.states.get(x, y, z);
+                    if (state.isAir()) continue;
+
+                    BlockState oldState = wasEmpty ? AIR : target.swapUnsafe(x, y, z, state);
+                    worldPos.set(this.pos.getMinX() + x, this.pos.getMinY() + y, this.pos.getMinZ() + z);
+
+                    if (oldState.hasBlockEntity()) {
+                        chunk.removeBlockEntity(worldPos);
+                    }
+
+                    if (state.hasBlockEntity()) {
+                        NbtCompound nbt = this.blockEntities.get(index(x, y, z));
+                        if (nbt != null) {
+                            chunk.addPendingBlockEntityNbt(nbt);
+                        }
+                        chunk.getBlockEntity(worldPos.toImmutable(), WorldChunk.CreationType.IMMEDIATE);
+                    }
+
+                    if (ChunkLightProvider.needsLightUpdate(chunk, worldPos, oldState, state)) {
+                        lightChecks.add(worldPos.asLong());
+                    }
+                }
+            }
+        }
+
+        section.calculateCounts();
+        if (wasEmpty != section.isEmpty()) {
+            chunk.getWorld().getChunkManager().getLightingProvider().setSectionStatus(this.pos, section.isEmpty());
+        }
+    }
+
+    private static int index(int x, int y, int z) {
+        return y << 8 | z << 4 | x;
+    }
+}
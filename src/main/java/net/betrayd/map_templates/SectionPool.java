@@ -0,0 +1,74 @@
+package net.betrayd.map_templates;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.world.chunk.PalettedContainer;
+
+/**
+ * Hash-conses block state containers, so sections with identical blocks can
+ * share a single container. Containers handed to the pool must not be
+ * modified afterwards. Safe to share between threads.
+ */
+final class SectionPool {
+    private final Map<Key, PalettedContainer<BlockState>> containers = new ConcurrentHashMap<>();
+
+    /**
+     * Compares containers by their blocks rather than their palette layout, so
+     * containers that were filled in a different order still match.
+     */
+    private record Key(PalettedContainer<BlockState> container, int hash) {
+        static Key of(PalettedContainer<BlockState> container) {
+            int hash = 1;
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        hash = 31 * hash + Block.STATE_IDS.getRawId(container.get(x, y, z));
+                    }
+                }
+            }
+            return new Key(container, hash);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof Key other) || this.hash != other.hash) return false;
+            if (this.container == other.container) return true;
+
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        if (this.container.get(x, y, z) != other.container.get(x, y, z)) return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    /**
+     * Get the pooled container with the same blocks as a container, adding it to
+     * the pool if there is none yet.
+     *
+     * @param container Container to look up.
+     * @return The pooled container, which may be <code>container</code> itself.
+     */
+    PalettedContainer<BlockState> intern(PalettedContainer<BlockState> container) {
+        return this.containers.computeIfAbsent(Key.of(container), Key::container);
+    }
+
+    /**
+     * @return The number of distinct containers in the pool.
+     */
+    int size() {
+        return this.containers.size();
+    }
+}
@@ -0,0 +1,82 @@
+package net.betrayd.map_templates;
+
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongIterable;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+/**
+ * The chunks of a template as they were at some point, for views that must not
+ * see later changes to it. Chunks the template owned at that point are copied,
+ * sharing their blocks until the template modifies them. Chunks it hadn't loaded
+ * yet are read from its own chunk source, which never changes.
+ * <p>
+ * Closing this does nothing; the template's chunk source is still closed along
+ * with the template.
+ */
+final class SnapshotChunkSource implements MapChunkSource {
+    private final Long2ObjectMap<MapChunk> chunks;
+    @Nullable
+    private final MapChunkSource parent;
+
+    SnapshotChunkSource(Long2ObjectMap<MapChunk> chunks, @Nullable MapChunkSource parent) {
+        this.chunks = chunks;
+        this.parent = parent;
+    }
+
+    @Override
+    public LongIterable getPositions() {
+        var parent = this.parent;
+        if (parent == null) return this.chunks.keySet();
+
+        return () -> new LongIterator() {
+            private final LongIterator owned = SnapshotChunkSource.this.chunks.keySet().iterator();
+            private final LongIterator loaded = parent.getPositions().iterator();
+            private boolean hasNext;
+            private long next;
+
+            @Override
+            public boolean hasNext() {
+                if (this.hasNext) return true;
+                if (this.owned.hasNext()) {
+                    this.next = this.owned.nextLong();
+                    return this.hasNext = true;
+                }
+                // Chunks that were taken out of the parent are already covered.
+                while (this.loaded.hasNext()) {
+                    long pos = this.loaded.nextLong();
+                    if (!SnapshotChunkSource.this.chunks.containsKey(pos)) {
+                        this.next = pos;
+                        return this.hasNext = true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public long nextLong() {
+                if (!this.hasNext()) throw new NoSuchElementException();
+                this.hasNext = false;
+                return this.next;
+            }
+        };
+    }
+
+    @Override
+    @Nullable
+    public MapChunk get(long pos) {
+        var chunk = this.chunks.get(pos);
+        if (chunk == null) {
+            var parent = this.parent;
+            if (parent != null) chunk = parent.get(pos);
+        }
+        return chunk;
+    }
+
+    @Override
+    public void close() {
+    }
+}
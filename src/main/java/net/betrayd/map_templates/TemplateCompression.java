@@ -0,0 +1,298 @@
+package net.betrayd.map_templates;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How a template file is compressed. The compression is detected when loading,
+ * so templates saved with any of these can be read the same way.
+ * <p>
+ * Gzip files are written as plain gzip streams, exactly like older versions
+ * did. Other compressions start with a short header: the magic number
+ * <code>"MTPL"</code> followed by a single codec byte.
+ *
+ * @see MapTemplateSerializer#saveTo(MapTemplate, OutputStream, TemplateCompression)
+ */
+public final class TemplateCompression {
+    private static final int MAGIC = 0x4D54504C;
+    private static final int CODEC_NONE = 0;
+    private static final int CODEC_FAST = 1;
+
+    /**
+     * Uncompressed blocks in the fast codec. Blocks are compressed on their own so
+     * they can be decompressed in parallel.
+     */
+    private static final int BLOCK_SIZE = 1 << 18;
+    /**
+     * How many blocks to decompress ahead of the reader.
+     */
+    private static final int READ_AHEAD = 4;
+
+    /**
+     * No compression. The largest files, but nothing to decode.
+     */
+    public static final TemplateCompression NONE = new TemplateCompression(Type.NONE, 0);
+    /**
+     * Gzip at the default level. This is what templates have always been saved
+     * with, and the only compression older versions can read, as long as the
+     * template isn't saved with shared sections.
+     */
+    public static final TemplateCompression GZIP = gzip(Deflater.DEFAULT_COMPRESSION);
+    /**
+     * A light LZ4-style compression in independent blocks that are decompressed
+     * in parallel while loading. Files are somewhat larger than gzip, but much
+     * cheaper to decode. Meant for templates that are loaded often.
+     */
+    public static final TemplateCompression FAST = new TemplateCompression(Type.FAST, 0);
+
+    private enum Type {
+        NONE,
+        GZIP,
+        FAST
+    }
+
+    private final Type type;
+    private final int level;
+
+    private TemplateCompression(Type type, int level) {
+        this.type = type;
+        this.level = level;
+    }
+
+    /**
+     * Gzip at a specific level.
+     *
+     * @param level Compression level, from <code>0</code> to <code>9</code>, or
+     *              <code>-1</code> for the default.
+     * @return The compression.
+     */
+    public static TemplateCompression gzip(int level) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("Invalid gzip level: " + level);
+        }
+        return new TemplateCompression(Type.GZIP, level);
+    }
+
+    /**
+     * Start a compressed stream, writing a header if this compression needs one.
+     * Closing the returned stream closes <code>output</code>.
+     */
+    OutputStream compress(OutputStream output) throws IOException {
+        return switch (this.type) {
+            case NONE -> {
+                writeHeader(output, CODEC_NONE);
+                yield output;
+            }
+            case GZIP -> new GZIPOutputStream(output) {
+                {
+                    this.def.setLevel(TemplateCompression.this.level);
+                }
+            };
+            case FAST -> {
+                writeHeader(output, CODEC_FAST);
+                yield new BlockOutputStream(output);
+            }
+        };
+    }
+
+    /**
+     * Open a stream written by any compression. Closing the returned stream
+     * closes <code>input</code>.
+     *
+     * @throws IOException If the compression isn't recognized.
+     */
+    static InputStream decompress(InputStream input) throws IOException {
+        var buffered = new BufferedInputStream(input);
+
+        buffered.mark(5);
+        var header = new DataInputStream(buffered);
+        int magic = header.readInt();
+
+        // Gzip streams start with 1F 8B.
+        if (magic >>> 16 == 0x1F8B) {
+            buffered.reset();
+            return new GZIPInputStream(buffered);
+        }
+
+        if (magic != MAGIC) {
+            throw new IOException("Unknown template compression");
+        }
+
+        int codec = header.readUnsignedByte();
+        return switch (codec) {
+            case CODEC_NONE -> buffered;
+            case CODEC_FAST -> new BlockInputStream(buffered);
+            default -> throw new IOException("Unknown template compression codec " + codec);
+        };
+    }
+
+    private static void writeHeader(OutputStream output, int codec) throws IOException {
+        var data = new DataOutputStream(output);
+        data.writeInt(MAGIC);
+        data.writeByte(codec);
+    }
+
+    @Override
+    public String toString() {
+        return this.type == Type.GZIP ? "GZIP(" + this.level + ")" : this.type.name();
+    }
+
+    /**
+     * Writes <code>{ int raw length, int compressed length, data }</code> per
+     * block, followed by a zero raw length.
+     *
+     * @see LzBlockCodec
+     */
+    private static final class BlockOutputStream extends OutputStream {
+        private final DataOutputStream output;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] compressed = new byte[LzBlockCodec.maxCompressedLength(BLOCK_SIZE)];
+        private final int[] table = LzBlockCodec.createTable();
+        private int length;
+
+        BlockOutputStream(OutputStream output) {
+            this.output = new DataOutputStream(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.length == BLOCK_SIZE) this.writeBlock();
+            this.block[this.length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (this.length == BLOCK_SIZE) this.writeBlock();
+
+                int n = Math.min(len, BLOCK_SIZE - this.length);
+                System.arraycopy(b, off, this.block, this.length, n);
+                this.length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (this.length == 0) return;
+
+            int compressedLength = LzBlockCodec.compress(this.block, this.length, this.compressed, this.table);
+
+            this.output.writeInt(this.length);
+            this.output.writeInt(compressedLength);
+            this.output.write(this.compressed, 0, compressedLength);
+            this.length = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.writeBlock();
+            this.output.writeInt(0);
+            this.output.close();
+        }
+    }
+
+    private static final class BlockInputStream extends InputStream {
+        private final DataInputStream input;
+        private final Queue<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+        private boolean endOfInput;
+
+        private byte[] block = new byte[0];
+        private int position;
+
+        BlockInputStream(InputStream input) {
+            this.input = new DataInputStream(input);
+        }
+
+        /**
+         * Read compressed blocks and start decompressing them until enough are
+         * in flight.
+         */
+        private void readAhead() throws IOException {
+            while (!this.endOfInput && this.pending.size() < READ_AHEAD) {
+                int rawLength = this.input.readInt();
+                if (rawLength == 0) {
+                    this.endOfInput = true;
+                    break;
+                }
+
+                int compressedLength = this.input.readInt();
+                if (rawLength < 0 || rawLength > BLOCK_SIZE || compressedLength <= 0
+                        || compressedLength > LzBlockCodec.maxCompressedLength(rawLength)) {
+                    throw new IOException("Corrupt template block");
+                }
+
+                byte[] compressed = this.input.readNBytes(compressedLength);
+                if (compressed.length != compressedLength) {
+                    throw new EOFException();
+                }
+
+                this.pending.add(CompletableFuture.supplyAsync(() -> decode(compressed, rawLength)));
+            }
+        }
+
+        private boolean nextBlock() throws IOException {
+            this.readAhead();
+
+            var next = this.pending.poll();
+            if (next == null) return false;
+
+            try {
+                this.block = next.join();
+            } catch (CompletionException e) {
+                throw new IOException("Corrupt template block", e.getCause());
+            }
+            this.position = 0;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (this.position == this.block.length) {
+                if (!this.nextBlock()) return -1;
+            }
+            return this.block[this.position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            while (this.position == this.block.length) {
+                if (!this.nextBlock()) return -1;
+            }
+
+            int n = Math.min(len, this.block.length - this.position);
+            System.arraycopy(this.block, this.position, b, off, n);
+            this.position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.pending.forEach(future -> future.cancel(false));
+            this.pending.clear();
+            this.input.close();
+        }
+
+        private static byte[] decode(byte[] compressed, int rawLength) {
+            try {
+                return LzBlockCodec.decompress(compressed, rawLength);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }
+    }
+}
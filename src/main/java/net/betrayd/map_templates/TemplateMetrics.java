@@ -0,0 +1,345 @@
+package net.betrayd.map_templates;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timings and counts collected during a single template operation, such as a
+ * load or a placement.
+ * <p>
+ * Nothing is collected unless a {@link TemplateMetricsListener} other than
+ * {@link TemplateMetricsListener#NONE} is installed. Phases that run on several
+ * threads at once are summed across those threads, so phase times may add up
+ * to more than the total time.
+ */
+public final class TemplateMetrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TemplateMetrics.class);
+
+    /**
+     * Metrics that record nothing, used while no listener is installed.
+     */
+    static final TemplateMetrics DISABLED = new TemplateMetrics(null, null);
+
+    private static volatile TemplateMetricsListener currentListener = TemplateMetricsListener.NONE;
+
+    public enum Operation {
+        /**
+         * Loading a template from a stream or from resources.
+         */
+        LOAD,
+        /**
+         * Saving a template to a stream.
+         */
+        SAVE,
+        /**
+         * Placing a template into a world. For incremental placement, the total
+         * time spans every tick until the placement is done, but phases only count
+         * the time spent within ticks.
+         */
+        PLACE,
+        /**
+         * Compiling a template from a world.
+         */
+        EXPORT
+    }
+
+    public enum Phase {
+        /**
+         * Reading and decompressing the raw stream.
+         */
+        DECOMPRESS,
+        /**
+         * Parsing NBT out of the decompressed stream.
+         */
+        PARSE,
+        /**
+         * Running datafixers on outdated chunks.
+         */
+        DATAFIX,
+        /**
+         * Building chunks, entities and regions from their NBT.
+         */
+        DESERIALIZE,
+        /**
+         * Encoding the template as NBT.
+         */
+        SERIALIZE,
+        /**
+         * Compressing and writing the encoded template.
+         */
+        COMPRESS,
+        /**
+         * Writing blocks into the world. Section-based placement creates block
+         * entities while writing blocks, so their time is counted here as well.
+         */
+        PLACE_BLOCKS,
+        /**
+         * Creating block entities, for block-by-block placement.
+         */
+        PLACE_BLOCK_ENTITIES,
+        /**
+         * Spawning entities into the world.
+         */
+        SPAWN_ENTITIES,
+        /**
+         * Copying sections and block entities out of the world.
+         */
+        CAPTURE_BLOCKS,
+        /**
+         * Collecting entities from the world.
+         */
+        CAPTURE_ENTITIES
+    }
+
+    @Nullable
+    private final Operation operation;
+    @Nullable
+    private final TemplateMetricsListener listener;
+    @Nullable
+    private volatile String name;
+
+    private final long startNanos;
+    private long totalNanos;
+    private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+
+    private final AtomicInteger sections = new AtomicInteger();
+    private final AtomicInteger blockEntities = new AtomicInteger();
+    private final AtomicInteger entities = new AtomicInteger();
+
+    private TemplateMetrics(@Nullable Operation operation, @Nullable TemplateMetricsListener listener) {
+        this.operation = operation;
+        this.listener = listener;
+        this.startNanos = listener != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Set the listener that receives the metrics of every template operation.
+     *
+     * @param listener The listener, or {@link TemplateMetricsListener#NONE} to
+     *                 stop collecting metrics.
+     */
+    public static void setListener(TemplateMetricsListener listener) {
+        currentListener = listener;
+    }
+
+    public static TemplateMetricsListener getListener() {
+        return currentListener;
+    }
+
+    /**
+     * Start collecting metrics for an operation.
+     *
+     * @return The metrics, or {@link #DISABLED} if no listener is installed.
+     */
+    static TemplateMetrics start(Operation operation) {
+        var listener = currentListener;
+        if (listener == TemplateMetricsListener.NONE) return DISABLED;
+
+        var metrics = new TemplateMetrics(operation, listener);
+        try {
+            listener.onStart(metrics);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Template metrics listener failed", e);
+        }
+        return metrics;
+    }
+
+    boolean isEnabled() {
+        return this.listener != null;
+    }
+
+    /**
+     * @return The current time to pass to {@link #record}, or <code>0</code> if
+     *         nothing is being collected.
+     */
+    long time() {
+        return this.listener != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Add the time since <code>start</code> to a phase.
+     */
+    void record(Phase phase, long start) {
+        if (this.listener == null) return;
+        this.phaseNanos.addAndGet(phase.ordinal(), System.nanoTime() - start);
+    }
+
+    void add(Phase phase, long nanos) {
+        if (this.listener == null) return;
+        this.phaseNanos.addAndGet(phase.ordinal(), nanos);
+    }
+
+    void addSections(int count) {
+        if (this.listener != null) this.sections.addAndGet(count);
+    }
+
+    void addBlockEntities(int count) {
+        if (this.listener != null) this.blockEntities.addAndGet(count);
+    }
+
+    void addEntities(int count) {
+        if (this.listener != null) this.entities.addAndGet(count);
+    }
+
+    void setName(@Nullable String name) {
+        if (this.listener != null) this.name = name;
+    }
+
+    /**
+     * Time everything read through a stream as a phase.
+     */
+    InputStream time(InputStream input, Phase phase) {
+        if (this.listener == null) return input;
+
+        return new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return super.read();
+                } finally {
+                    TemplateMetrics.this.record(phase, start);
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return this.in.read(b, off, len);
+                } finally {
+                    TemplateMetrics.this.record(phase, start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Time everything written through a stream as a phase.
+     */
+    OutputStream time(OutputStream output, Phase phase) {
+        if (this.listener == null) return output;
+
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    this.out.write(b);
+                } finally {
+                    TemplateMetrics.this.record(phase, start);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    this.out.write(b, off, len);
+                } finally {
+                    TemplateMetrics.this.record(phase, start);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    super.close();
+                } finally {
+                    TemplateMetrics.this.record(phase, start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Finish the operation and report it to the listener.
+     */
+    void finish() {
+        var listener = this.listener;
+        if (listener == null) return;
+
+        this.totalNanos = System.nanoTime() - this.startNanos;
+        try {
+            listener.onFinish(this);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Template metrics listener failed", e);
+        }
+    }
+
+    public Operation getOperation() {
+        return this.operation;
+    }
+
+    /**
+     * @return The identifier of the template, if it's known. Only templates
+     *         loaded from resources have one.
+     */
+    @Nullable
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return The wall time of the whole operation, in nanoseconds. Zero until the
+     *         operation has finished.
+     */
+    public long getTotalNanos() {
+        return this.totalNanos;
+    }
+
+    /**
+     * @param phase The phase.
+     * @return The time spent in a phase, in nanoseconds.
+     */
+    public long getNanos(Phase phase) {
+        return this.phaseNanos.get(phase.ordinal());
+    }
+
+    /**
+     * @return The number of chunk sections loaded, saved, placed or exported.
+     */
+    public int getSections() {
+        return this.sections.get();
+    }
+
+    public int getBlockEntities() {
+        return this.blockEntities.get();
+    }
+
+    public int getEntities() {
+        return this.entities.get();
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder().append(this.operation);
+        if (this.name != null) builder.append(' ').append(this.name);
+        builder.append(" in ").append(this.totalNanos / 1000).append("us [");
+
+        boolean first = true;
+        for (Phase phase : Phase.values()) {
+            long nanos = this.getNanos(phase);
+            if (nanos == 0) continue;
+
+            if (!first) builder.append(", ");
+            builder.append(phase).append('=').append(nanos / 1000).append("us");
+            first = false;
+        }
+
+        return builder.append("], sections=").append(this.getSections())
+                .append(", block entities=").append(this.getBlockEntities())
+                .append(", entities=").append(this.getEntities())
+                .toString();
+    }
+}
@@ -0,0 +1,37 @@
+package net.betrayd.map_templates;
+
+/**
+ * Receives timings and counts from template operations. Install one with
+ * {@link TemplateMetrics#setListener}.
+ * <p>
+ * Listeners are called on whichever thread the operation happened on, which
+ * may be a worker thread, so implementations must be thread-safe and should
+ * return quickly.
+ *
+ * @see JfrTemplateMetricsListener
+ */
+public interface TemplateMetricsListener {
+    /**
+     * The default listener, which ignores everything. While it's installed,
+     * operations don't collect any metrics at all.
+     */
+    TemplateMetricsListener NONE = metrics -> {
+    };
+
+    /**
+     * Called when an operation starts. Nothing has been recorded yet.
+     *
+     * @param metrics The metrics of the operation, which will be passed to
+     *                {@link #onFinish} once it's done.
+     */
+    default void onStart(TemplateMetrics metrics) {
+    }
+
+    /**
+     * Called when an operation has completed successfully. Operations that fail
+     * are not reported.
+     *
+     * @param metrics The metrics of the operation.
+     */
+    void onFinish(TemplateMetrics metrics);
+}
@@ -0,0 +1,264 @@
+package net.betrayd.map_templates;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jetbrains.annotations.Nullable;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.LongIterable;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import net.minecraft.block.BlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+/**
+ * A chunk source that reads the chunks of another template through a
+ * translation, rotation or mirror, building each transformed chunk only when
+ * it's first needed. The template is read through a
+ * {@linkplain MapTemplate#snapshotChunks() snapshot}, so later changes to it
+ * don't show up.
+ * <p>
+ * Every supported transform maps horizontal positions through
+ * <code>x' = x0 + xx * x + xz * z</code> and
+ * <code>z' = z0 + zx * x + zz * z</code>, where the coefficients form a signed
+ * permutation, and offsets Y by <code>y0</code>. A transformed chunk is
+ * gathered from the (up to eight) source chunks it overlaps. Chunks that line
+ * up with source chunks under a plain translation share their blocks instead.
+ * <p>
+ * Transformed chunks aren't kept for the lifetime of the view, which would
+ * amount to a full transformed copy of the template. Only the most recently
+ * used ones are kept, like {@link MappedChunkSource} does, and a template
+ * using this source only holds on to the chunks it modifies.
+ */
+final class TransformedChunkSource implements MapChunkSource {
+    /**
+     * How many bytes of transformed chunks are kept around for repeated lookups,
+     * such as block-by-block reads of the same chunk.
+     */
+    private static final long MAX_CACHED_BYTES = 16L << 20;
+
+    private final MapChunkSource source;
+    private final int x0, y0, z0;
+    private final int xx, xz, zx, zz;
+    @Nullable
+    private final MapTransform blockTransform;
+
+    private final Map<BlockState, BlockState> states = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Long, Entry> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+    @Nullable
+    private volatile LongSet positions;
+
+    private TransformedChunkSource(MapChunkSource source, int x0, int y0, int z0, int xx, int xz, int zx, int zz,
+            @Nullable MapTransform blockTransform) {
+        this.source = source;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.z0 = z0;
+        this.xx = xx;
+        this.xz = xz;
+        this.zx = zx;
+        this.zz = zz;
+        this.blockTransform = blockTransform;
+    }
+
+    static TransformedChunkSource translation(MapTemplate source, int x, int y, int z) {
+        return new TransformedChunkSource(source.snapshotChunks(), x, y, z, 1, 0, 0, 1, null);
+    }
+
+    /**
+     * @param transform A rotation and mirror from
+     *                  {@link MapTransform#rotationAround}.
+     */
+    static TransformedChunkSource rotation(MapTemplate source, MapTransform transform) {
+        // Rotations and mirrors only ever swap and flip the horizontal axes, so three points are enough.
+        BlockPos origin = transform.transformedPoint(BlockPos.ORIGIN);
+        BlockPos unitX = transform.transformedPoint(new BlockPos(1, 0, 0)).subtract(origin);
+        BlockPos unitZ = transform.transformedPoint(new BlockPos(0, 0, 1)).subtract(origin);
+
+        return new TransformedChunkSource(source.snapshotChunks(), origin.getX(), 0, origin.getZ(),
+                unitX.getX(), unitZ.getX(), unitX.getZ(), unitZ.getZ(), transform);
+    }
+
+    private boolean isAlignedTranslation() {
+        return this.blockTransform == null && ((this.x0 | this.y0 | this.z0) & 0xF) == 0;
+    }
+
+    @Override
+    public LongIterable getPositions() {
+        return this.getPositionSet();
+    }
+
+    private LongSet getPositionSet() {
+        var positions = this.positions;
+        if (positions == null) {
+            var result = new LongOpenHashSet();
+            this.source.getPositions().forEach((long pos) -> {
+                int minX = ChunkSectionPos.unpackX(pos) << 4;
+                int minY = ChunkSectionPos.unpackY(pos) << 4;
+                int minZ = ChunkSectionPos.unpackZ(pos) << 4;
+
+                int ax = this.x0 + this.xx * minX + this.xz * minZ;
+                int bx = this.x0 + this.xx * (minX + 15) + this.xz * (minZ + 15);
+                int az = this.z0 + this.zx * minX + this.zz * minZ;
+                int bz = this.z0 + this.zx * (minX + 15) + this.zz * (minZ + 15);
+
+                for (int y = (minY + this.y0) >> 4; y <= (minY + 15 + this.y0) >> 4; y++) {
+                    for (int z = Math.min(az, bz) >> 4; z <= Math.max(az, bz) >> 4; z++) {
+                        for (int x = Math.min(ax, bx) >> 4; x <= Math.max(ax, bx) >> 4; x++) {
+                            result.add(MapTemplate.chunkPos(x, y, z));
+                        }
+                    }
+                }
+            });
+            this.positions = positions = LongSets.unmodifiable(result);
+        }
+        return positions;
+    }
+
+    private record Entry(MapChunk chunk, long size) {
+    }
+
+    @Override
+    @Nullable
+    public MapChunk get(long pos) {
+        MapChunk chunk = null;
+        synchronized (this.loaded) {
+            var entry = this.loaded.get(pos);
+            if (entry != null) chunk = entry.chunk();
+        }
+
+        if (chunk == null) {
+            if (!this.getPositionSet().contains(pos)) return null;
+
+            // Build outside the lock so chunks can be transformed in parallel.
+            chunk = this.transformChunk(ChunkSectionPos.from(pos));
+
+            synchronized (this.loaded) {
+                var existing = this.loaded.get(pos);
+                if (existing != null) {
+                    chunk = existing.chunk();
+                } else {
+                    long size = chunk.estimateSize();
+                    this.loaded.put(pos, new Entry(chunk, size));
+                    this.cachedBytes += size;
+                    this.evict(pos);
+                }
+            }
+        }
+        return chunk.hasContent() ? chunk : null;
+    }
+
+    /**
+     * Drop the least recently used chunks until the budget is met, always
+     * keeping the chunk that was just transformed.
+     */
+    private void evict(long keep) {
+        Iterator<Map.Entry<Long, Entry>> iterator = this.loaded.entrySet().iterator();
+        while (this.cachedBytes > MAX_CACHED_BYTES && iterator.hasNext()) {
+            var entry = iterator.next();
+            if (entry.getKey() == keep) continue;
+
+            this.cachedBytes -= entry.getValue().size();
+            iterator.remove();
+        }
+    }
+
+    private MapChunk transformChunk(ChunkSectionPos pos) {
+        if (this.isAlignedTranslation()) {
+            var chunk = this.source.get(MapTemplate.chunkPos(
+                    pos.getX() - (this.x0 >> 4), pos.getY() - (this.y0 >> 4), pos.getZ() - (this.z0 >> 4)));
+            return chunk != null ? chunk.copy(pos) : new MapChunk(pos);
+        }
+
+        var result = new MapChunk(pos);
+
+        // The source region covered by this chunk, found through the inverse transform.
+        int targetMinX = pos.getMinX(), targetMinZ = pos.getMinZ();
+        int ax = this.inverseX(targetMinX, targetMinZ);
+        int bx = this.inverseX(targetMinX + 15, targetMinZ + 15);
+        int az = this.inverseZ(targetMinX, targetMinZ);
+        int bz = this.inverseZ(targetMinX + 15, targetMinZ + 15);
+
+        int minX = Math.min(ax, bx), maxX = Math.max(ax, bx);
+        int minZ = Math.min(az, bz), maxZ = Math.max(az, bz);
+        int minY = pos.getMinY() - this.y0, maxY = minY + 15;
+
+        for (int sectionY = minY >> 4; sectionY <= maxY >> 4; sectionY++) {
+            for (int sectionZ = minZ >> 4; sectionZ <= maxZ >> 4; sectionZ++) {
+                for (int sectionX = minX >> 4; sectionX <= maxX >> 4; sectionX++) {
+                    MapChunk chunk = this.source.get(MapTemplate.chunkPos(sectionX, sectionY, sectionZ));
+                    if (chunk == null) continue;
+
+                    int fromX = Math.max(minX, sectionX << 4), toX = Math.min(maxX, (sectionX << 4) + 15);
+                    int fromY = Math.max(minY, sectionY << 4), toY = Math.min(maxY, (sectionY << 4) + 15);
+                    int fromZ = Math.max(minZ, sectionZ << 4), toZ = Math.min(maxZ, (sectionZ << 4) + 15);
+
+                    if (!chunk.isEmpty()) {
+                        for (int y = fromY; y <= toY; y++) {
+                            for (int z = fromZ; z <= toZ; z++) {
+                                for (int x = fromX; x <= toX; x++) {
+                                    var state = chunk.get(x & 0xF, y & 0xF, z & 0xF);
+                                    if (state.isAir()) continue;
+
+                                    // The chunk isn't visible to other threads yet.
+                                    result.setUnchecked(this.forwardX(x, z) & 0xF, (y + this.y0) & 0xF,
+                                            this.forwardZ(x, z) & 0xF, this.transformBlock(state));
+                                }
+                            }
+                        }
+                    }
+
+                    for (var entry : Long2ObjectMaps.fastIterable(chunk.getBlockEntities())) {
+                        long localPos = entry.getLongKey();
+                        int x = (sectionX << 4) + BlockPos.unpackLongX(localPos);
+                        int y = (sectionY << 4) + BlockPos.unpackLongY(localPos);
+                        int z = (sectionZ << 4) + BlockPos.unpackLongZ(localPos);
+                        if (x < fromX || x > toX || y < fromY || y > toY || z < fromZ || z > toZ) continue;
+
+                        result.putBlockEntity(this.forwardX(x, z) & 0xF, (y + this.y0) & 0xF,
+                                this.forwardZ(x, z) & 0xF, entry.getValue());
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private int forwardX(int x, int z) {
+        return this.x0 + this.xx * x + this.xz * z;
+    }
+
+    private int forwardZ(int x, int z) {
+        return this.z0 + this.zx * x + this.zz * z;
+    }
+
+    // The coefficients form an orthogonal matrix, so the inverse is its transpose.
+
+    private int inverseX(int x, int z) {
+        return this.xx * (x - this.x0) + this.zx * (z - this.z0);
+    }
+
+    private int inverseZ(int x, int z) {
+        return this.xz * (x - this.x0) + this.zz * (z - this.z0);
+    }
+
+    private BlockState transformBlock(BlockState state) {
+        var transform = this.blockTransform;
+        return transform != null ? this.states.computeIfAbsent(state, transform::transformedBlock) : state;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.loaded) {
+            this.loaded.clear();
+            this.cachedBytes = 0;
+        }
+    }
+}
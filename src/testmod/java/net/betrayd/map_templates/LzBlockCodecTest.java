@@ -0,0 +1,159 @@
+package net.betrayd.map_templates;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compresses and decompresses blocks of {@link LzBlockCodec} and checks that
+ * they come back unchanged, and that corrupt blocks are rejected instead of
+ * decoding to garbage. Lives in the codec's package because the codec isn't
+ * public.
+ */
+public final class LzBlockCodecTest {
+    /**
+     * Covers every length up to and past the point where the codec starts
+     * looking for matches at all.
+     */
+    private static final int MAX_SHORT_LENGTH = 64;
+    private static final int BLOCK_SIZE = 1 << 18;
+
+    private LzBlockCodecTest() {
+    }
+
+    /**
+     * Run every check, throwing on the first one that fails.
+     */
+    public static void run() throws IOException {
+        var random = new Random(0x4D54504C);
+        int[] table = LzBlockCodec.createTable();
+
+        checkRoundTrip(new byte[0], table, "empty input");
+
+        for (int length = 1; length <= MAX_SHORT_LENGTH; length++) {
+            byte[] same = new byte[length];
+            Arrays.fill(same, (byte) 7);
+            checkRoundTrip(same, table, "repeated input of " + length + " bytes");
+            checkRoundTrip(randomBytes(random, length), table, "random input of " + length + " bytes");
+        }
+
+        checkOverlappingMatches(table);
+
+        // Literal and match lengths of 15 and more need extra length bytes, and 270 and more need several.
+        checkRoundTrip(randomBytes(random, 1000), table, "long literal run");
+        byte[] longMatch = new byte[2000];
+        System.arraycopy(randomBytes(random, 600), 0, longMatch, 0, 600);
+        System.arraycopy(longMatch, 0, longMatch, 600, 600);
+        System.arraycopy(longMatch, 0, longMatch, 1200, 600);
+        checkRoundTrip(longMatch, table, "long match");
+
+        // A repeat further back than a 16-bit offset can reach must be written as literals.
+        byte[] farRepeat = new byte[0x10000 + 2000];
+        byte[] head = randomBytes(random, 2000);
+        System.arraycopy(head, 0, farRepeat, 0, head.length);
+        System.arraycopy(randomBytes(random, 0x10000 - 2000), 0, farRepeat, 2000, 0x10000 - 2000);
+        System.arraycopy(head, 0, farRepeat, 0x10000, head.length);
+        checkRoundTrip(farRepeat, table, "repeat past the maximum offset");
+
+        checkRoundTrip(blockLikeBytes(random, BLOCK_SIZE), table, "full block");
+
+        checkCorruptBlocks(random, table);
+    }
+
+    /**
+     * Runs of a single byte or a short pattern are encoded as matches whose
+     * offset is shorter than their length, so they overlap the bytes they copy.
+     */
+    private static void checkOverlappingMatches(int[] table) throws IOException {
+        byte[] run = new byte[4096];
+        Arrays.fill(run, (byte) 42);
+        int compressedLength = checkRoundTrip(run, table, "single byte run");
+        check(compressedLength < 64, "single byte run wasn't encoded as an overlapping match");
+
+        byte[] pattern = new byte[4096];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = (byte) (i % 3);
+        }
+        compressedLength = checkRoundTrip(pattern, table, "three byte pattern");
+        check(compressedLength < 64, "three byte pattern wasn't encoded as an overlapping match");
+    }
+
+    private static void checkCorruptBlocks(Random random, int[] table) throws IOException {
+        checkRejected(new byte[0], 0, "empty block");
+        // One literal, then a match with an offset of zero.
+        checkRejected(new byte[] { 0x10, 'a', 0, 0 }, 8, "zero offset");
+        // One literal, then a match reaching back before the start of the block.
+        checkRejected(new byte[] { 0x10, 'a', 5, 0 }, 8, "offset before the start");
+        // One literal, then a match running past the end of the block.
+        checkRejected(new byte[] { 0x1F, 'a', 1, 0, 100 }, 8, "match past the end");
+        // A literal length longer than the block.
+        checkRejected(new byte[] { (byte) 0xF0, (byte) 255, (byte) 255, 1 }, 8, "literals past the end");
+
+        byte[] data = blockLikeBytes(random, 4096);
+        byte[] compressed = new byte[LzBlockCodec.maxCompressedLength(data.length)];
+        int compressedLength = LzBlockCodec.compress(data, data.length, compressed, table);
+        byte[] block = Arrays.copyOf(compressed, compressedLength);
+
+        checkRejected(Arrays.copyOf(block, block.length - 1), data.length, "truncated block");
+        checkRejected(Arrays.copyOf(block, block.length / 2), data.length, "half a block");
+        checkRejected(block, data.length - 1, "block longer than expected");
+        checkRejected(block, data.length + 1, "block shorter than expected");
+    }
+
+    /**
+     * @return The compressed length.
+     */
+    private static int checkRoundTrip(byte[] data, int[] table, String name) throws IOException {
+        int maxLength = LzBlockCodec.maxCompressedLength(data.length);
+        // Pad the buffer so a compressor writing past its bound is caught.
+        byte[] compressed = new byte[maxLength + 64];
+        int compressedLength = LzBlockCodec.compress(data, data.length, compressed, table);
+        check(compressedLength <= maxLength, name + " compressed to " + compressedLength
+                + " bytes, more than the maximum of " + maxLength);
+
+        byte[] decompressed = LzBlockCodec.decompress(Arrays.copyOf(compressed, compressedLength), data.length);
+        check(Arrays.equals(data, decompressed), name + " changed after a round trip");
+        return compressedLength;
+    }
+
+    private static void checkRejected(byte[] block, int rawLength, String name) {
+        byte[] decompressed;
+        try {
+            decompressed = LzBlockCodec.decompress(block, rawLength);
+        } catch (IOException e) {
+            return;
+        }
+        throw new IllegalStateException(name + " was accepted and decoded to " + decompressed.length + " bytes");
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Something like serialized sections: a few palette indices in long runs,
+     * with the odd random stretch in between.
+     */
+    private static byte[] blockLikeBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        int i = 0;
+        while (i < length) {
+            int run = Math.min(length - i, 1 + random.nextInt(200));
+            if (random.nextInt(8) == 0) {
+                for (int j = 0; j < run; j++) {
+                    bytes[i + j] = (byte) random.nextInt();
+                }
+            } else {
+                Arrays.fill(bytes, i, i + run, (byte) random.nextInt(6));
+            }
+            i += run;
+        }
+        return bytes;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,216 @@
+package net.betrayd.map_templates_test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import net.betrayd.map_templates.BlockBounds;
+import net.betrayd.map_templates.MapTemplate;
+import net.betrayd.map_templates.MapTemplateSerializer;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * Writes an indexed template, edits it, saves the edits as deltas until the
+ * file is compacted, and checks that every reopened copy matches a template
+ * kept in memory. Needs the block registry, so it runs inside the game.
+ */
+public final class IndexedRoundTripTest {
+    private static final int SIZE = 64;
+    private static final int HEIGHT = 48;
+    /**
+     * Offset of the chunk count in the header of an indexed file.
+     */
+    private static final int CHUNK_COUNT_OFFSET = 4 + 4 + 8 + 4;
+    private static final int MAX_COMPACTION_ROUNDS = 8;
+
+    private static final BlockPos CHEST_POS = new BlockPos(3, 5, 7);
+
+    private IndexedRoundTripTest() {
+    }
+
+    /**
+     * Run every check, throwing on the first one that fails.
+     *
+     * @param directory Directory to write the test files to.
+     */
+    public static void run(Path directory) throws IOException {
+        Path path = directory.resolve("round_trip.nbt");
+        MapTemplate expected = createTemplate();
+
+        MapTemplateSerializer.saveIndexedTo(expected, path);
+        checkReopened(expected, path, "full write");
+
+        checkCopiesAreIndependent(path);
+        checkDeltaSave(expected, path);
+        checkCompaction(expected, path);
+        checkLoadLimit(path);
+        checkCorruptHeader(path, directory.resolve("corrupt.nbt"));
+    }
+
+    /**
+     * Sections with the same parity of chunk X + Z hold the same blocks, so
+     * there are many identical chunks for the format to share data between.
+     */
+    private static MapTemplate createTemplate() {
+        var template = MapTemplate.createEmpty();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int z = 0; z < SIZE; z++) {
+                for (int x = 0; x < SIZE; x++) {
+                    template.setBlockState(x, y, z, patternState(x, y, z));
+                }
+            }
+        }
+
+        template.setBlockState(CHEST_POS, Blocks.CHEST.getDefaultState());
+        var chest = new NbtCompound();
+        chest.putString("id", "minecraft:chest");
+        chest.putString("CustomName", "\"round trip\"");
+        template.setBlockEntityNbt(CHEST_POS, chest);
+        return template;
+    }
+
+    private static BlockState patternState(int x, int y, int z) {
+        if ((((x >> 4) + (z >> 4)) & 1) == 0) {
+            return (y & 3) == 0 ? Blocks.STONE.getDefaultState() : Blocks.DIRT.getDefaultState();
+        } else {
+            return y % 3 == 0 ? Blocks.GLASS.getDefaultState() : Blocks.OAK_PLANKS.getDefaultState();
+        }
+    }
+
+    /**
+     * Lazily decoded chunks with the same blocks must not share a container that
+     * a write to one of them would change.
+     */
+    private static void checkCopiesAreIndependent(Path path) throws IOException {
+        var template = MapTemplateSerializer.openIndexed(path);
+        try {
+            // Chunks (0, 0) and (1, 1) hold the same blocks.
+            var before = template.getBlockState(16 + 2, 2, 16 + 2);
+            template.setBlockState(2, 2, 2, Blocks.GOLD_BLOCK.getDefaultState());
+            check(template.getBlockState(16 + 2, 2, 16 + 2) == before,
+                    "writing to a lazily loaded chunk changed an identical chunk");
+        } finally {
+            template.close();
+        }
+    }
+
+    /**
+     * Edit a few chunks of a lazily opened template and save only those.
+     */
+    private static void checkDeltaSave(MapTemplate expected, Path path) throws IOException {
+        long fullSize = Files.size(path);
+
+        var template = MapTemplateSerializer.openIndexed(path);
+        try {
+            setBoth(expected, template, new BlockPos(1, 1, 1), Blocks.DIAMOND_BLOCK.getDefaultState());
+            setBoth(expected, template, new BlockPos(40, 30, 50), Blocks.AIR.getDefaultState());
+            setBoth(expected, template, new BlockPos(63, 47, 63), Blocks.EMERALD_BLOCK.getDefaultState());
+            MapTemplateSerializer.saveIndexedDelta(template, path);
+        } finally {
+            template.close();
+        }
+
+        check(Files.size(path) < fullSize * 2, "delta save rewrote the whole template");
+        checkReopened(expected, path, "delta save");
+    }
+
+    /**
+     * Rewrite every chunk until the replaced chunks outweigh the live ones and
+     * the file is compacted.
+     */
+    private static void checkCompaction(MapTemplate expected, Path path) throws IOException {
+        for (int round = 0; round < MAX_COMPACTION_ROUNDS; round++) {
+            long sizeBefore = Files.size(path);
+
+            var template = MapTemplateSerializer.openIndexed(path);
+            try {
+                var state = (round & 1) == 0 ? Blocks.IRON_BLOCK.getDefaultState() : Blocks.COPPER_BLOCK.getDefaultState();
+                for (int y = 0; y < HEIGHT; y += 16) {
+                    for (int z = 0; z < SIZE; z += 16) {
+                        for (int x = 0; x < SIZE; x += 16) {
+                            setBoth(expected, template, new BlockPos(x + 8, y + 8, z + 8), state);
+                        }
+                    }
+                }
+                MapTemplateSerializer.saveIndexedDelta(template, path);
+            } finally {
+                template.close();
+            }
+
+            checkReopened(expected, path, "delta save round " + round);
+            if (Files.size(path) < sizeBefore) {
+                checkReopened(expected, path, "compaction");
+                return;
+            }
+        }
+        throw new IllegalStateException("template was never compacted");
+    }
+
+    private static void checkLoadLimit(Path path) throws IOException {
+        long maxLoadBytes = MapTemplateSerializer.getMaxLoadBytes();
+        MapTemplateSerializer.setMaxLoadBytes(64);
+        try {
+            var template = MapTemplateSerializer.openIndexed(path);
+            try {
+                template.getBlockState(0, 0, 0);
+            } finally {
+                template.close();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            return;
+        } finally {
+            MapTemplateSerializer.setMaxLoadBytes(maxLoadBytes);
+        }
+        throw new IllegalStateException("load limit was ignored");
+    }
+
+    private static void checkCorruptHeader(Path path, Path corruptPath) throws IOException {
+        Files.copy(path, corruptPath, StandardCopyOption.REPLACE_EXISTING);
+        try (var channel = FileChannel.open(corruptPath, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(Integer.MAX_VALUE).flip(), CHUNK_COUNT_OFFSET);
+        }
+
+        try {
+            MapTemplateSerializer.openIndexed(corruptPath).close();
+        } catch (IOException e) {
+            return;
+        }
+        throw new IllegalStateException("corrupt chunk count was accepted");
+    }
+
+    private static void setBoth(MapTemplate expected, MapTemplate template, BlockPos pos, BlockState state) {
+        expected.setBlockState(pos, state);
+        template.setBlockState(pos, state);
+    }
+
+    private static void checkReopened(MapTemplate expected, Path path, String step) throws IOException {
+        var template = MapTemplateSerializer.openIndexed(path);
+        try {
+            BlockBounds bounds = BlockBounds.of(0, 0, 0, SIZE - 1, HEIGHT - 1, SIZE - 1);
+            for (BlockPos pos : bounds) {
+                if (template.getBlockState(pos) != expected.getBlockState(pos)) {
+                    throw new IllegalStateException("Block at " + pos + " differs after " + step + ": expected "
+                            + expected.getBlockState(pos) + ", got " + template.getBlockState(pos));
+                }
+            }
+
+            var chest = template.getBlockEntityNbt(CHEST_POS);
+            check(chest != null && chest.getString("CustomName").equals("\"round trip\""),
+                    "block entity was lost after " + step);
+        } finally {
+            template.close();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) throw new IllegalStateException(message);
+    }
+}
@@ -5,7 +5,11 @@ import java.nio.file.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.betrayd.map_templates_test.commands.BlockCodecTestCommand;
 import net.betrayd.map_templates_test.commands.ExportTemplateCommand;
+import net.betrayd.map_templates_test.commands.FastPathTestCommand;
+import net.betrayd.map_templates_test.commands.PlacementTestCommand;
+import net.betrayd.map_templates_test.commands.RoundTripTestCommand;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.loader.api.FabricLoader;
@@ -18,6 +22,10 @@ public class MapTemplatesTest implements ModInitializer {
     @Override
     public void onInitialize() {
         CommandRegistrationCallback.EVENT.register(ExportTemplateCommand::register);
+        CommandRegistrationCallback.EVENT.register(PlacementTestCommand::register);
+        CommandRegistrationCallback.EVENT.register(RoundTripTestCommand::register);
+        CommandRegistrationCallback.EVENT.register(BlockCodecTestCommand::register);
+        CommandRegistrationCallback.EVENT.register(FastPathTestCommand::register);
     }
 
     public static Path getExportedTemplatePath(Identifier id) {
@@ -0,0 +1,148 @@
+package net.betrayd.map_templates_test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import net.betrayd.map_templates.BlockBounds;
+import net.betrayd.map_templates.MapTemplate;
+import net.betrayd.map_templates.MapTemplateSerializer;
+import net.betrayd.map_templates.TemplateCompression;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.util.math.BlockPos;
+
+import static net.betrayd.map_templates_test.TemplateChecks.check;
+
+/**
+ * Saves and loads a template with empty, uniform and mixed chunks, and checks
+ * every block against the block-by-block pattern it was built from. Chunks are
+ * filled through several changes, so they move between being empty, uniform
+ * and mixed before they're saved.
+ * <p>
+ * Chunks along X hold, in order: nothing, stone, cave air, a mix of blocks and
+ * air-like blocks, stone with a chest, and a single block.
+ */
+public final class SectionRoundTripTest {
+    private static final int CHUNK_COUNT = 6;
+    private static final BlockBounds BOUNDS = BlockBounds.of(0, 0, 0, CHUNK_COUNT * 16 - 1, 15, 15);
+    private static final BlockPos CHEST_POS = new BlockPos(4 * 16 + 3, 5, 7);
+    private static final BlockPos SINGLE_POS = new BlockPos(5 * 16 + 8, 8, 8);
+
+    private SectionRoundTripTest() {
+    }
+
+    /**
+     * Run every check, throwing on the first one that fails.
+     *
+     * @param directory Directory to write the test files to.
+     */
+    public static void run(Path directory) throws IOException {
+        MapTemplate template = createTemplate();
+        checkPattern(template, "building the template");
+
+        checkPattern(reload(template, TemplateCompression.GZIP, false), "gzip round trip");
+        checkPattern(reload(template, TemplateCompression.FAST, false), "fast round trip");
+        checkPattern(reload(template, TemplateCompression.GZIP, true), "round trip with shared sections");
+
+        Path path = directory.resolve("sections.nbt");
+        MapTemplateSerializer.saveIndexedTo(template, path);
+        var indexed = MapTemplateSerializer.openIndexed(path);
+        try {
+            checkPattern(indexed, "indexed round trip");
+        } finally {
+            indexed.close();
+        }
+    }
+
+    private static MapTemplate createTemplate() {
+        var template = MapTemplate.createEmpty();
+
+        // Empty once the only block is removed again.
+        template.setBlockState(1, 1, 1, Blocks.STONE.getDefaultState());
+        template.setBlockState(1, 1, 1, Blocks.AIR.getDefaultState());
+
+        // Uniform again after a block is changed and changed back.
+        fillChunk(template, 1, Blocks.STONE.getDefaultState());
+        template.setBlockState(16 + 4, 4, 4, Blocks.DIRT.getDefaultState());
+        template.setBlockState(16 + 4, 4, 4, Blocks.STONE.getDefaultState());
+
+        // Uniform stone replaced by uniform cave air, which must not turn into plain air.
+        fillChunk(template, 2, Blocks.STONE.getDefaultState());
+        fillChunk(template, 2, Blocks.CAVE_AIR.getDefaultState());
+
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 3 * 16; x < 4 * 16; x++) {
+                    template.setBlockState(x, y, z, expectedState(x, y, z));
+                }
+            }
+        }
+
+        fillChunk(template, 4, Blocks.STONE.getDefaultState());
+        template.setBlockState(CHEST_POS, Blocks.CHEST.getDefaultState());
+        var chest = new NbtCompound();
+        chest.putString("id", "minecraft:chest");
+        chest.putString("CustomName", "\"sections\"");
+        template.setBlockEntityNbt(CHEST_POS, chest);
+
+        // Mixed while it's emptied, down to a single block.
+        fillChunk(template, 5, Blocks.GLASS.getDefaultState());
+        fillChunk(template, 5, Blocks.AIR.getDefaultState());
+        template.setBlockState(SINGLE_POS, Blocks.GLASS.getDefaultState());
+
+        return template;
+    }
+
+    private static void fillChunk(MapTemplate template, int chunkX, BlockState state) {
+        for (int y = 0; y < 16; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    template.setBlockState((chunkX << 4) + x, y, z, state);
+                }
+            }
+        }
+    }
+
+    private static BlockState expectedState(int x, int y, int z) {
+        return switch (x >> 4) {
+            case 1 -> Blocks.STONE.getDefaultState();
+            case 2 -> Blocks.CAVE_AIR.getDefaultState();
+            case 3 -> switch ((x * 7 + y * 3 + z) % 5) {
+                case 0 -> Blocks.STONE.getDefaultState();
+                case 1 -> Blocks.GLASS.getDefaultState();
+                case 2 -> Blocks.CAVE_AIR.getDefaultState();
+                case 3 -> Blocks.VOID_AIR.getDefaultState();
+                default -> Blocks.AIR.getDefaultState();
+            };
+            case 4 -> CHEST_POS.equals(new BlockPos(x, y, z)) ? Blocks.CHEST.getDefaultState()
+                    : Blocks.STONE.getDefaultState();
+            case 5 -> SINGLE_POS.equals(new BlockPos(x, y, z)) ? Blocks.GLASS.getDefaultState()
+                    : Blocks.AIR.getDefaultState();
+            default -> Blocks.AIR.getDefaultState();
+        };
+    }
+
+    private static MapTemplate reload(MapTemplate template, TemplateCompression compression, boolean shareSections)
+            throws IOException {
+        var output = new ByteArrayOutputStream();
+        MapTemplateSerializer.saveTo(template, output, compression, shareSections);
+        return MapTemplateSerializer.loadFrom(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private static void checkPattern(MapTemplate template, String step) {
+        for (BlockPos pos : BOUNDS) {
+            var expected = expectedState(pos.getX(), pos.getY(), pos.getZ());
+            if (template.getBlockState(pos) != expected) {
+                throw new IllegalStateException("Block at " + pos + " differs after " + step + ": expected "
+                        + expected + ", got " + template.getBlockState(pos));
+            }
+        }
+
+        var chest = template.getBlockEntityNbt(CHEST_POS);
+        check(chest != null && chest.getString("CustomName").equals("\"sections\""),
+                "block entity was lost after " + step);
+    }
+}
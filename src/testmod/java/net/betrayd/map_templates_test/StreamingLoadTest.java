@@ -0,0 +1,159 @@
+package net.betrayd.map_templates_test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import net.betrayd.map_templates.BlockBounds;
+import net.betrayd.map_templates.MapChunk;
+import net.betrayd.map_templates.MapTemplate;
+import net.betrayd.map_templates.MapTemplateSerializer;
+import net.betrayd.map_templates.TemplateCompression;
+import net.betrayd.map_templates.TemplateRegion;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtTagSizeTracker;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkSectionPos;
+
+import static net.betrayd.map_templates_test.TemplateChecks.check;
+import static net.betrayd.map_templates_test.TemplateChecks.checkSameBlocks;
+
+/**
+ * Loads templates through the streaming reader and checks them against the
+ * same files read as one NBT tree and decoded chunk by chunk, the way
+ * templates were loaded before. The template has more chunks than the reader
+ * decodes in one batch.
+ */
+public final class StreamingLoadTest {
+    private static final BlockBounds BOUNDS = BlockBounds.of(-70, 0, -70, 73, 63, 73);
+    private static final BlockPos CHEST_POS = new BlockPos(-33, 17, 40);
+
+    private StreamingLoadTest() {
+    }
+
+    /**
+     * Run every check, throwing on the first one that fails.
+     */
+    public static void run() throws IOException {
+        MapTemplate template = createTemplate();
+
+        byte[] gzip = save(template, TemplateCompression.GZIP, false);
+        MapTemplate expected = loadTree(gzip);
+        var chest = expected.getBlockEntityNbt(CHEST_POS);
+        check(chest != null && chest.getString("CustomName").equals("\"streaming\""),
+                "block entity was lost loading the NBT tree");
+
+        checkStreamed(expected, gzip, "gzip");
+        checkStreamed(expected, save(template, TemplateCompression.FAST, false), "fast compression");
+        checkStreamed(expected, save(template, TemplateCompression.GZIP, true), "shared sections");
+
+        // Files written as a single tree don't keep the data version ahead of the chunks.
+        var root = NbtIo.readCompressed(new ByteArrayInputStream(gzip), NbtTagSizeTracker.ofUnlimitedBytes());
+        var output = new ByteArrayOutputStream();
+        NbtIo.writeCompressed(root, output);
+        checkStreamed(expected, output.toByteArray(), "a file written as one tree");
+
+        checkLoadLimit(gzip);
+    }
+
+    /**
+     * Stone and dirt layers with pockets of air, and enough variety between
+     * chunks that few of them are identical.
+     */
+    private static MapTemplate createTemplate() {
+        var template = MapTemplate.createEmpty();
+        var random = new Random(0xC0FFEE);
+        BlockState[] states = {
+                Blocks.STONE.getDefaultState(), Blocks.DIRT.getDefaultState(), Blocks.GRAVEL.getDefaultState(),
+                Blocks.CAVE_AIR.getDefaultState(), Blocks.AIR.getDefaultState()
+        };
+        for (BlockPos pos : BOUNDS) {
+            if (pos.getY() > 40 && random.nextInt(8) != 0) continue;
+            template.setBlockState(pos, states[random.nextInt(states.length)]);
+        }
+
+        template.setBlockState(CHEST_POS, Blocks.CHEST.getDefaultState());
+        var chest = new NbtCompound();
+        chest.putString("id", "minecraft:chest");
+        chest.putString("CustomName", "\"streaming\"");
+        template.setBlockEntityNbt(CHEST_POS, chest);
+
+        var data = new NbtCompound();
+        data.putString("name", "streaming");
+        template.getMetadata().setData(data);
+        template.getMetadata().addRegion("spawn", BlockBounds.of(-3, 41, -3, 3, 43, 3));
+        return template;
+    }
+
+    private static byte[] save(MapTemplate template, TemplateCompression compression, boolean shareSections)
+            throws IOException {
+        var output = new ByteArrayOutputStream();
+        MapTemplateSerializer.saveTo(template, output, compression, shareSections);
+        return output.toByteArray();
+    }
+
+    /**
+     * Read a gzip template as a whole NBT tree and copy each decoded chunk into
+     * a new template block by block.
+     */
+    private static MapTemplate loadTree(byte[] data) throws IOException {
+        var root = NbtIo.readCompressed(new ByteArrayInputStream(data), NbtTagSizeTracker.ofUnlimitedBytes());
+        var template = MapTemplate.createEmpty();
+
+        var chunkList = root.getList("chunks", NbtElement.COMPOUND_TYPE);
+        for (int i = 0; i < chunkList.size(); i++) {
+            var chunkRoot = chunkList.getCompound(i);
+            int[] pos = chunkRoot.getIntArray("pos");
+            var sectionPos = ChunkSectionPos.from(pos[0], pos[1], pos[2]);
+            var chunk = MapChunk.deserialize(sectionPos, chunkRoot);
+
+            for (int y = 0; y < 16; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        var state = chunk.get(x, y, z);
+                        if (!state.isOf(Blocks.AIR)) {
+                            template.setBlockState(sectionPos.getMinX() + x, sectionPos.getMinY() + y,
+                                    sectionPos.getMinZ() + z, state);
+                        }
+                    }
+                }
+            }
+
+            chunk.streamBlockEntities().forEach(entry -> {
+                template.setBlockEntityNbt(entry.getKey().add(sectionPos.getMinPos()), entry.getValue());
+            });
+        }
+
+        var regionList = root.getList("regions", NbtElement.COMPOUND_TYPE);
+        for (int i = 0; i < regionList.size(); i++) {
+            template.getMetadata().addRegion(TemplateRegion.deserialize(regionList.getCompound(i)));
+        }
+        template.getMetadata().setData(root.getCompound("data"));
+        return template;
+    }
+
+    private static void checkStreamed(MapTemplate expected, byte[] data, String step) throws IOException {
+        var template = MapTemplateSerializer.loadFrom(new ByteArrayInputStream(data));
+        checkSameBlocks(expected, template, BOUNDS, "streaming " + step);
+
+        check(template.getMetadata().getData().equals(expected.getMetadata().getData()),
+                "template data differs after streaming " + step);
+        var region = template.getMetadata().getFirstRegion("spawn");
+        check(region != null && region.getBounds().equals(expected.getMetadata().getFirstRegionBounds("spawn")),
+                "region differs after streaming " + step);
+    }
+
+    private static void checkLoadLimit(byte[] data) throws IOException {
+        try {
+            MapTemplateSerializer.loadFrom(new ByteArrayInputStream(data), 4096);
+        } catch (IOException e) {
+            return;
+        }
+        throw new IllegalStateException("load limit was ignored while streaming");
+    }
+}
@@ -0,0 +1,37 @@
+package net.betrayd.map_templates_test;
+
+import java.util.Objects;
+
+import net.betrayd.map_templates.BlockBounds;
+import net.betrayd.map_templates.MapTemplate;
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * Comparisons shared by the checks that run a fast path against a slower
+ * reference.
+ */
+final class TemplateChecks {
+    private TemplateChecks() {
+    }
+
+    /**
+     * Check that two templates have the same blocks and block entities within
+     * some bounds.
+     */
+    static void checkSameBlocks(MapTemplate expected, MapTemplate actual, BlockBounds bounds, String step) {
+        for (BlockPos pos : bounds) {
+            if (actual.getBlockState(pos) != expected.getBlockState(pos)) {
+                throw new IllegalStateException("Block at " + pos + " differs after " + step + ": expected "
+                        + expected.getBlockState(pos) + ", got " + actual.getBlockState(pos));
+            }
+            if (!Objects.equals(actual.getBlockEntityNbt(pos), expected.getBlockEntityNbt(pos))) {
+                throw new IllegalStateException("Block entity at " + pos + " differs after " + step + ": expected "
+                        + expected.getBlockEntityNbt(pos) + ", got " + actual.getBlockEntityNbt(pos));
+            }
+        }
+    }
+
+    static void check(boolean condition, String message) {
+        if (!condition) throw new IllegalStateException(message);
+    }
+}
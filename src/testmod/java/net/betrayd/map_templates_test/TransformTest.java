@@ -0,0 +1,104 @@
+package net.betrayd.map_templates_test;
+
+import java.util.Random;
+
+import net.betrayd.map_templates.BlockBounds;
+import net.betrayd.map_templates.MapTemplate;
+import net.betrayd.map_templates.MapTransform;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.ChestBlock;
+import net.minecraft.block.PillarBlock;
+import net.minecraft.block.StairsBlock;
+import net.minecraft.block.enums.BlockHalf;
+import net.minecraft.block.enums.StairShape;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.util.BlockMirror;
+import net.minecraft.util.BlockRotation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+import static net.betrayd.map_templates_test.TemplateChecks.checkSameBlocks;
+
+/**
+ * Transforms a template with every rotation and mirror, and with a translation,
+ * through the chunk-by-chunk views and checks that they match the block-by-block
+ * {@link MapTemplate#transformed(MapTransform)}. The pivot, offset and template
+ * bounds don't line up with chunks, so blocks are moved across chunk borders.
+ */
+public final class TransformTest {
+    private static final BlockBounds BOUNDS = BlockBounds.of(-5, 2, -11, 31, 21, 17);
+    private static final BlockPos PIVOT = new BlockPos(7, 3, -9);
+    private static final BlockPos[] CHEST_POSITIONS = {
+            new BlockPos(-5, 2, -11), new BlockPos(15, 10, 0), new BlockPos(16, 15, -1), new BlockPos(31, 21, 17)
+    };
+    /**
+     * How far past the transformed bounds to check that nothing was placed.
+     */
+    private static final int MARGIN = 16;
+
+    private TransformTest() {
+    }
+
+    /**
+     * Run every check, throwing on the first one that fails.
+     */
+    public static void run() {
+        MapTemplate source = createTemplate();
+
+        for (BlockRotation rotation : BlockRotation.values()) {
+            for (BlockMirror mirror : BlockMirror.values()) {
+                var transform = MapTransform.rotationAround(PIVOT, rotation, mirror);
+                String name = rotation + " and " + mirror;
+                checkTransform(source, transform, source.rotatedView(PIVOT, rotation, mirror), name + " view");
+                checkTransform(source, transform, source.rotateAround(PIVOT, rotation, mirror), name);
+            }
+        }
+
+        var translation = MapTransform.translation(5, -3, 21);
+        checkTransform(source, translation, source.translatedView(5, -3, 21), "translated view");
+        checkTransform(source, translation, source.translated(5, -3, 21), "translation");
+    }
+
+    private static void checkTransform(MapTemplate source, MapTransform transform, MapTemplate actual, String step) {
+        MapTemplate expected = source.transformed(transform);
+        BlockBounds bounds = transform.transformedBounds(BOUNDS);
+        checkSameBlocks(expected, actual, BlockBounds.of(bounds.min().add(-MARGIN, -MARGIN, -MARGIN),
+                bounds.max().add(MARGIN, MARGIN, MARGIN)), step);
+    }
+
+    private static MapTemplate createTemplate() {
+        var template = MapTemplate.createEmpty();
+        var random = new Random(0x5EED);
+        for (BlockPos pos : BOUNDS) {
+            template.setBlockState(pos, randomState(random));
+        }
+
+        for (int i = 0; i < CHEST_POSITIONS.length; i++) {
+            var pos = CHEST_POSITIONS[i];
+            template.setBlockState(pos, Blocks.CHEST.getDefaultState().with(ChestBlock.FACING, Direction.fromHorizontal(i)));
+            var chest = new NbtCompound();
+            chest.putString("id", "minecraft:chest");
+            chest.putString("CustomName", "\"chest " + i + "\"");
+            template.setBlockEntityNbt(pos, chest);
+        }
+        return template;
+    }
+
+    /**
+     * Mostly blocks whose state changes when rotated or mirrored, so a wrong
+     * state transform shows up as well as a wrong position.
+     */
+    private static BlockState randomState(Random random) {
+        return switch (random.nextInt(5)) {
+            case 0 -> Blocks.AIR.getDefaultState();
+            case 1 -> Blocks.STONE.getDefaultState();
+            case 2 -> Blocks.OAK_LOG.getDefaultState()
+                    .with(PillarBlock.AXIS, Direction.Axis.values()[random.nextInt(3)]);
+            default -> Blocks.OAK_STAIRS.getDefaultState()
+                    .with(StairsBlock.FACING, Direction.fromHorizontal(random.nextInt(4)))
+                    .with(StairsBlock.HALF, BlockHalf.values()[random.nextInt(2)])
+                    .with(StairsBlock.SHAPE, StairShape.values()[random.nextInt(StairShape.values().length)]);
+        };
+    }
+}
@@ -0,0 +1,47 @@
+package net.betrayd.map_templates_test.commands;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.context.CommandContext;
+
+import net.betrayd.map_templates.LzBlockCodecTest;
+import net.betrayd.map_templates_test.MapTemplatesTest;
+import net.minecraft.command.CommandRegistryAccess;
+import net.minecraft.server.command.CommandManager.RegistrationEnvironment;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import net.minecraft.util.Util;
+
+import static net.minecraft.server.command.CommandManager.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+
+public class BlockCodecTestCommand {
+
+    public static void register(CommandDispatcher<ServerCommandSource> dispatcher, CommandRegistryAccess registryAccess,
+            RegistrationEnvironment environment) {
+
+        dispatcher.register(literal("test_block_codec").executes(BlockCodecTestCommand::execute));
+    }
+
+    private static int execute(CommandContext<ServerCommandSource> context) {
+        context.getSource().sendFeedback(() -> Text.literal("Running block codec test"), false);
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                LzBlockCodecTest.run();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, Util.getMainWorkerExecutor()).thenRun(() -> {
+            context.getSource().sendFeedback(() -> Text.literal("Block codec test passed"), false);
+        }).exceptionally(e -> {
+            context.getSource().sendFeedback(() -> Text.literal("Block codec test failed. See console for details."), false);
+            MapTemplatesTest.LOGGER.error("Block codec test failed.", e);
+            return null;
+        });
+
+        return 1;
+    }
+}
@@ -0,0 +1,70 @@
+package net.betrayd.map_templates_test.commands;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.context.CommandContext;
+
+import net.betrayd.map_templates_test.MapTemplatesTest;
+import net.betrayd.map_templates_test.SectionRoundTripTest;
+import net.betrayd.map_templates_test.StreamingLoadTest;
+import net.betrayd.map_templates_test.TransformTest;
+import net.minecraft.command.CommandRegistryAccess;
+import net.minecraft.server.command.CommandManager.RegistrationEnvironment;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import net.minecraft.util.Util;
+
+import static net.minecraft.server.command.CommandManager.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Checks the chunk-level fast paths against the block-by-block code they
+ * replaced.
+ */
+public class FastPathTestCommand {
+
+    public static void register(CommandDispatcher<ServerCommandSource> dispatcher, CommandRegistryAccess registryAccess,
+            RegistrationEnvironment environment) {
+
+        dispatcher.register(literal("test_fast_paths").executes(FastPathTestCommand::execute));
+    }
+
+    private static int execute(CommandContext<ServerCommandSource> context) {
+        context.getSource().sendFeedback(() -> Text.literal("Running fast path tests"), false);
+
+        CompletableFuture.runAsync(() -> {
+            TransformTest.run();
+
+            try {
+                StreamingLoadTest.run();
+
+                var directory = Files.createTempDirectory("map-templates-test");
+                try {
+                    SectionRoundTripTest.run(directory);
+                } finally {
+                    try (Stream<Path> files = Files.list(directory)) {
+                        for (var file : (Iterable<Path>) files::iterator) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                    Files.deleteIfExists(directory);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, Util.getMainWorkerExecutor()).thenRun(() -> {
+            context.getSource().sendFeedback(() -> Text.literal("Fast path tests passed"), false);
+        }).exceptionally(e -> {
+            context.getSource().sendFeedback(() -> Text.literal("Fast path tests failed. See console for details."), false);
+            MapTemplatesTest.LOGGER.error("Fast path tests failed.", e);
+            return null;
+        });
+
+        return 1;
+    }
+}
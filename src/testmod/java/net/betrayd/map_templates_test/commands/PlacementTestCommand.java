@@ -0,0 +1,79 @@
+package net.betrayd.map_templates_test.commands;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.context.CommandContext;
+
+import net.betrayd.map_templates.MapTemplate;
+import net.betrayd.map_templates.MapTemplatePlacer;
+import net.betrayd.map_templates_test.MapTemplatesTest;
+import net.minecraft.block.Blocks;
+import net.minecraft.command.CommandRegistryAccess;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.server.command.CommandManager.RegistrationEnvironment;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import net.minecraft.util.Nameable;
+import net.minecraft.util.math.BlockPos;
+
+import static net.minecraft.server.command.CommandManager.*;
+
+/**
+ * Places a row of named barrels with {@link MapTemplatePlacer#placeSectionsAt}
+ * at an origin that isn't aligned to the section grid, then checks that every
+ * barrel kept its name.
+ * <p>
+ * The row spans several template sections, and with this offset each world
+ * section overlaps two of them, so barrels from neighbouring template sections
+ * share local positions.
+ */
+public class PlacementTestCommand {
+    private static final int LENGTH = 48;
+
+    public static void register(CommandDispatcher<ServerCommandSource> dispatcher, CommandRegistryAccess registryAccess,
+            RegistrationEnvironment environment) {
+
+        dispatcher.register(literal("test_unaligned_placement").executes(PlacementTestCommand::execute));
+    }
+
+    private static int execute(CommandContext<ServerCommandSource> context) {
+        var source = context.getSource();
+        var world = source.getWorld();
+
+        var template = MapTemplate.createEmpty();
+        for (int x = 0; x < LENGTH; x++) {
+            template.setBlockState(x, 0, 0, Blocks.BARREL.getDefaultState());
+
+            var nbt = new NbtCompound();
+            nbt.putString("id", "minecraft:barrel");
+            nbt.putString("CustomName", Text.Serialization.toJsonString(Text.literal(Integer.toString(x))));
+            template.setBlockEntityNbt(x, 0, 0, nbt);
+        }
+
+        // Half a section off the grid on every axis.
+        BlockPos playerPos = BlockPos.ofFloored(source.getPosition());
+        BlockPos origin = new BlockPos((playerPos.getX() & ~0xF) + 8, (playerPos.getY() & ~0xF) + 8, (playerPos.getZ() & ~0xF) + 8);
+
+        new MapTemplatePlacer(template).placeSectionsAt(world, origin);
+
+        int failures = 0;
+        for (int x = 0; x < LENGTH; x++) {
+            String expected = Integer.toString(x);
+            var blockEntity = world.getBlockEntity(origin.add(x, 0, 0));
+
+            if (!(blockEntity instanceof Nameable nameable) || nameable.getCustomName() == null
+                    || !expected.equals(nameable.getCustomName().getString())) {
+                MapTemplatesTest.LOGGER.error("Barrel {} was placed without its block entity data: {}", expected, blockEntity);
+                failures++;
+            }
+        }
+
+        if (failures == 0) {
+            source.sendFeedback(() -> Text.literal("Unaligned placement test passed"), false);
+            return 1;
+        } else {
+            int count = failures;
+            source.sendFeedback(() -> Text.literal("Unaligned placement test failed for " + count + " barrels. See console for details."), false);
+            return 0;
+        }
+    }
+}
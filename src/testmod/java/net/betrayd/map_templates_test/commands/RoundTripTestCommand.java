@@ -0,0 +1,60 @@
+package net.betrayd.map_templates_test.commands;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.context.CommandContext;
+
+import net.betrayd.map_templates_test.IndexedRoundTripTest;
+import net.betrayd.map_templates_test.MapTemplatesTest;
+import net.minecraft.command.CommandRegistryAccess;
+import net.minecraft.server.command.CommandManager.RegistrationEnvironment;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+import net.minecraft.util.Util;
+
+import static net.minecraft.server.command.CommandManager.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+public class RoundTripTestCommand {
+
+    public static void register(CommandDispatcher<ServerCommandSource> dispatcher, CommandRegistryAccess registryAccess,
+            RegistrationEnvironment environment) {
+
+        dispatcher.register(literal("test_indexed_round_trip").executes(RoundTripTestCommand::execute));
+    }
+
+    private static int execute(CommandContext<ServerCommandSource> context) {
+        context.getSource().sendFeedback(() -> Text.literal("Running indexed template round trip test"), false);
+
+        CompletableFuture.runAsync(() -> {
+            try {
+                var directory = Files.createTempDirectory("map-templates-test");
+                try {
+                    IndexedRoundTripTest.run(directory);
+                } finally {
+                    try (Stream<Path> files = Files.list(directory)) {
+                        for (var file : (Iterable<Path>) files::iterator) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                    Files.deleteIfExists(directory);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, Util.getMainWorkerExecutor()).thenRun(() -> {
+            context.getSource().sendFeedback(() -> Text.literal("Indexed template round trip test passed"), false);
+        }).exceptionally(e -> {
+            context.getSource().sendFeedback(() -> Text.literal("Indexed template round trip test failed. See console for details."), false);
+            MapTemplatesTest.LOGGER.error("Indexed template round trip test failed.", e);
+            return null;
+        });
+
+        return 1;
+    }
+}